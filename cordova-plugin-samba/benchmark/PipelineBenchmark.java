@@ -0,0 +1,146 @@
+package net.cloudseat.smbova;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 读写流水线基准
+ * 用内存中的替身代替 SmbRandomAccessFile，每次读取前等待固定的网络延迟；写入本地临时文件，
+ * 每次写入后可再等待一段时间模拟慢速存储。比较逐块读写的循环与 PipelinedCopy，并核对输出内容
+ *
+ * 在 cordova-plugin-samba 目录下运行（json.jar 为 org.json）：
+ *   javac -encoding UTF-8 -cp json.jar -d /tmp/bench src/android/transfer/PipelinedCopy.java \
+ *       src/android/transfer/BufferTuner.java src/android/util/LocalFiles.java src/android/util/SmbUrl.java \
+ *       benchmark/PipelineBenchmark.java
+ *   java -cp /tmp/bench:json.jar net.cloudseat.smbova.PipelineBenchmark [MB]
+ */
+public class PipelineBenchmark {
+
+    private static final int DEFAULT_MB = 64;
+    // {网络延迟, 磁盘延迟} 毫秒
+    private static final int[][] CASES = { { 2, 0 }, { 2, 1 }, { 1, 1 } };
+
+    public static void main(String[] args) throws Exception {
+        int mb = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MB;
+        byte[] data = new byte[mb * 1024 * 1024];
+        new Random(42).nextBytes(data);
+        File target = File.createTempFile("pipeline", ".bin");
+        try {
+            System.out.println(mb + " MB, single stream, " + PipelinedCopy.BUFFER_SIZE / 1024 + " KB buffers");
+            for (int[] c : CASES) {
+                long loop = loop(new RemoteStandIn(data, c[0]), target, c[1]);
+                boolean loopOk = Arrays.equals(data, LocalFiles.read(target));
+                long pipelined = pipelined(new RemoteStandIn(data, c[0]), target, c[1]);
+                boolean pipelinedOk = Arrays.equals(data, LocalFiles.read(target));
+                System.out.println("  net " + c[0] + " ms, disk " + c[1] + " ms:  loop " + loop + " ms, pipelined "
+                    + pipelined + " ms" + (loopOk && pipelinedOk ? "" : "  OUTPUT MISMATCH"));
+            }
+        } finally {
+            target.delete();
+        }
+        // 流水线的写入线程池不是守护线程
+        System.exit(0);
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    // 原来的做法：读一块写一块
+    private static long loop(RemoteStandIn remote, File target, int diskDelay) throws Exception {
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            byte[] b = new byte[PipelinedCopy.BUFFER_SIZE];
+            long start = System.currentTimeMillis();
+            int len;
+            while ((len = remote.read(b, 0, b.length)) > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(b, 0, len);
+                while (buffer.hasRemaining()) channel.write(buffer);
+                sleep(diskDelay);
+            }
+            return System.currentTimeMillis() - start;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static long pipelined(final RemoteStandIn remote, File target, final int diskDelay) throws Exception {
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            file.setLength(0);
+            final FileChannel channel = file.getChannel();
+            long start = System.currentTimeMillis();
+            PipelinedCopy.copy(new PipelinedCopy.Source() {
+                private byte[] b = new byte[0];
+
+                @Override
+                public int read(ByteBuffer buffer) throws IOException {
+                    if (b.length < buffer.remaining()) b = new byte[buffer.remaining()];
+                    int len = remote.read(b, 0, buffer.remaining());
+                    if (len > 0) buffer.put(b, 0, len);
+                    return len;
+                }
+            }, new PipelinedCopy.Sink() {
+                @Override
+                public void write(ByteBuffer buffer, long position) throws IOException {
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    sleep(diskDelay);
+                }
+            }, 0, remote.length(), null);
+            return System.currentTimeMillis() - start;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void sleep(int millis) throws IOException {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 远程文件替身：与 SmbRandomAccessFile.read 相同的接口，每次请求等待一个往返
+     */
+    private static class RemoteStandIn {
+        private final byte[] data;
+        private final int latency;
+        private int position = 0;
+
+        public RemoteStandIn(byte[] data, int latency) {
+            this.data = data;
+            this.latency = latency;
+        }
+
+        public long length() {
+            return data.length;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= data.length) return -1;
+            sleep(latency);
+            int n = Math.min(len, data.length - position);
+            System.arraycopy(data, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+
+}
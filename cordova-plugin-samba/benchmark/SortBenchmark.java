@@ -0,0 +1,109 @@
+package net.cloudseat.smbova;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 目录列表排序基准
+ * 比较原来的做法（JSONObject 列表 + 每次比较调用 Collator.compare）与 ListingSorter（每个条目一个 CollationKey）
+ * 名称为中文与 ASCII 混合，取 ROUNDS 轮中最快的一轮
+ *
+ * 在 cordova-plugin-samba 目录下运行（json.jar 为 org.json）：
+ *   javac -encoding UTF-8 -cp json.jar -d /tmp/bench src/android/listing/ListingEntry.java \
+ *       src/android/listing/ListingSorter.java benchmark/SortBenchmark.java
+ *   java -cp /tmp/bench:json.jar net.cloudseat.smbova.SortBenchmark [条目数]
+ */
+public class SortBenchmark {
+
+    private static final int DEFAULT_COUNT = 50000;
+    private static final int ROUNDS = 5;
+    private static final String HAN = "照片视频文档音乐下载备份工作家庭旅行北京上海广州深圳春夏秋冬年月日新旧";
+    private static final String[] PREFIXES = { "IMG_", "DSC", "Screenshot_", "report-", "" };
+    private static final String[] EXTS = { "jpg", "png", "mp4", "pdf", "txt", "" };
+
+    public static void main(String[] args) throws JSONException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_COUNT;
+        List<ListingEntry> entries = generate(count, new Random(42));
+
+        long legacy = Long.MAX_VALUE, byName = Long.MAX_VALUE, bySize = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            List<JSONObject> json = new ArrayList<JSONObject>(entries.size());
+            for (ListingEntry entry : entries) {
+                json.add(entry.toJSON());
+            }
+            long start = System.nanoTime();
+            Collections.sort(json, new LegacyComparator());
+            legacy = Math.min(legacy, System.nanoTime() - start);
+
+            List<ListingEntry> list = new ArrayList<ListingEntry>(entries);
+            start = System.nanoTime();
+            ListingSorter.sort(list, ListingSorter.SORT_NAME, false);
+            byName = Math.min(byName, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            ListingSorter.sort(list, ListingSorter.SORT_SIZE, true);
+            bySize = Math.min(bySize, System.nanoTime() - start);
+        }
+
+        System.out.println(count + " entries, best of " + ROUNDS + " rounds, " + System.getProperty("java.version"));
+        System.out.println("  JSONObject + Collator.compare  " + legacy / 1000000 + " ms");
+        System.out.println("  ListingSorter by name           " + byName / 1000000 + " ms");
+        System.out.println("  ListingSorter by size           " + bySize / 1000000 + " ms");
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    // 约 5% 为文件夹
+    private static List<ListingEntry> generate(int count, Random random) {
+        List<ListingEntry> entries = new ArrayList<ListingEntry>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder name = new StringBuilder();
+            if (random.nextBoolean()) {
+                for (int n = 1 + random.nextInt(4); n > 0; n--) {
+                    name.append(HAN.charAt(random.nextInt(HAN.length())));
+                }
+            }
+            name.append(PREFIXES[random.nextInt(PREFIXES.length)]).append(random.nextInt(100000));
+            int type = random.nextInt(20) == 0 ? 1 : 0;
+            String ext = type == 0 ? EXTS[random.nextInt(EXTS.length)] : "";
+            if (!ext.isEmpty()) name.append('.').append(ext);
+            entries.add(new ListingEntry(name.toString(), ext, type, 0, "smb://host/share/" + name,
+                type == 0 ? random.nextInt(1 << 30) : 0, 1500000000000L + random.nextInt(1 << 30)));
+        }
+        return entries;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 原来 SambaFile 中的排序：文件夹在前，名称用 Collator 逐次比较
+     */
+    private static class LegacyComparator implements Comparator<JSONObject> {
+        private final Collator collator = Collator.getInstance(Locale.CHINESE);
+
+        @Override
+        public int compare(JSONObject o1, JSONObject o2) {
+            try {
+                int t1 = o1.getInt("type");
+                int t2 = o2.getInt("type");
+                if (t1 != t2) return t2 - t1;
+                return collator.compare(o1.getString("name"), o2.getString("name"));
+            } catch (JSONException e) {
+                return 0;
+            }
+        }
+    }
+
+}
@@ -26,23 +26,14 @@ package net.cloudseat.smbova;
 import jcifs.smb.*;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 
 import java.net.MalformedURLException;
-import java.text.Collator;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
-import java.util.HashMap;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -54,38 +45,15 @@ class SambaFile extends SmbFile {
     public static final int GROUP_AUDIO = 2;
     public static final int GROUP_VIDEO = 3;
 
-    private static final Map<Integer, String> GROUP_TYPES = new HashMap<Integer, String>() {{
-        put(GROUP_IMAGE, "bmp,cur,eps,gif,ico,jpe,jpg,jpeg,jpz,png,svg,tif,tiff");
-        put(GROUP_AUDIO, "aac,aiff,ape,caf,flac,m3u,m4a,mp3,ogg,wav,wma");
-        put(GROUP_VIDEO, "3gp,asf,avi,flv,m3u8,m4u,m4v,mkv,mov,mp4,mpa,mpe,mpeg,mpg,ogm,rm,rmvb,vob,webm,wmv");
-    }};
-
-    private static final int BUFFER_SIZE = 8192;
-    private static NtlmPasswordAuthentication auth;
-
-    // 中文排序
-    private Collator collator = Collator.getInstance(Locale.CHINESE);
+    // 部分虚拟机保留数组头部，数组长度不能达到 Integer.MAX_VALUE
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
 
     /**
-     * 重载构造器
+     * 重载构造器，使用路径所在服务器的认证
      * @param String path
      */
     public SambaFile(String path) throws MalformedURLException {
-        super(path, auth);
-    }
-
-    /**
-     * Sets username and password authentication
-     * @param String username
-     * @param String password
-     * @return
-     */
-    public static void setPrincipal(String username, String password) {
-        if (username != null && !username.isEmpty() && password != null && !password.isEmpty()) {
-            auth = new NtlmPasswordAuthentication(null, username, password);
-        } else {
-            auth = null;
-        }
+        super(path, SessionManager.authFor(path));
     }
 
     /**
@@ -94,13 +62,53 @@ class SambaFile extends SmbFile {
      * @return JSONArray
      */
     public JSONArray listEntries() throws MalformedURLException, SmbException, JSONException {
-        if (this.exists() && this.isDirectory()) {
-            SmbFile[] files = this.listFiles();
-            List<JSONObject> list = parseToList(files);
-            Collections.sort(list, new SambaComparator());
-            return new JSONArray(list);
+        return (JSONArray) listEntries(ListingOptions.parse(null));
+    }
+
+    /**
+     * 根据当前路径列出所有远程文件夹和文件，并按参数排序和编码
+     * @param ListingOptions options
+     * @return Object JSONArray 或紧凑格式的 JSON 文本
+     */
+    public Object listEntries(ListingOptions options)
+        throws MalformedURLException, SmbException, JSONException {
+
+        List<ListingEntry> list = options.sniff
+            ? classify(options.filter)
+            : snapshot(new SnapshotFilter(options.filter));
+        if (list == null) return null;
+        ListingSorter.sort(list, options.sortBy, options.descending);
+        return CompactListing.encode(this.getPath(), list, options.compact);
+    }
+
+    /**
+     * 分页列出当前路径下所有远程文件夹和文件
+     * 枚举过程中每满一页即回调一次，不保留完整列表，因此结果不排序
+     * @param ListingOptions options
+     * @param OnPageListener listener
+     * @return int 条目总数，路径不是目录时返回 -1
+     */
+    public int listEntries(ListingOptions options, OnPageListener listener) throws SmbException {
+        PagingFilter filter = new PagingFilter(options, listener);
+        return snapshot(filter) != null ? filter.flush() : -1;
+    }
+
+    /**
+     * 列出子目录和文件，不先查询当前路径是否为目录，用于遍历时已知是目录的路径
+     * @param EntryFilter filter 通配符条件不使用
+     * @return List<ListingEntry>
+     */
+    public List<ListingEntry> listChildren(EntryFilter filter) throws SmbException {
+        SnapshotFilter snapshot = new SnapshotFilter(filter);
+        ListingStats stats = new ListingStats(this.getPath());
+        try {
+            stats.call();
+            snapshot.stats = stats;
+            this.listFiles(snapshot);
+            return snapshot.entries;
+        } finally {
+            stats.finish();
         }
-        return null;
     }
 
     /**
@@ -108,22 +116,34 @@ class SambaFile extends SmbFile {
      * @return List<SambaFile>
      */
     public List<SambaFile> listImages() throws MalformedURLException, SmbException {
-        List<SambaFile> list = new ArrayList<SambaFile>();
-        if (this.exists() && this.isDirectory()) {
-            String[] names = this.list();
+        return listImages(null, false);
+    }
 
-            Collections.sort(Arrays.asList(names), new Comparator<String>() {
-                @Override
-                public int compare(String s1, String s2) {
-                    return collator.compare(s1, s2);
-                }
-            });
+    /**
+     * 获取当前路径下符合过滤条件的图片文件
+     * @param EntryFilter filter 可为空，类型组固定为图片
+     * @param boolean sniff 是否包含经内容识别为图片的无后缀或未知后缀文件
+     * @return List<SambaFile>
+     */
+    public List<SambaFile> listImages(EntryFilter filter, boolean sniff)
+        throws MalformedURLException, SmbException {
 
-            for (String name : names) {
-                int groupType = getGroupType(parseExtName(name));
-                if (groupType == SambaFile.GROUP_IMAGE) {
-                    list.add(new SambaFile(this.getPath() + name));
-                }
+        List<SambaFile> list = new ArrayList<SambaFile>();
+        EntryFilter imageFilter = filter == null
+            ? new EntryFilter(null, GROUP_IMAGE, true, 0, Long.MAX_VALUE)
+            : new EntryFilter(filter.pattern, GROUP_IMAGE, filter.hidden, filter.minSize, filter.maxSize);
+        List<ListingEntry> entries = sniff
+            ? classify(imageFilter)
+            : snapshot(new SnapshotFilter(imageFilter));
+        if (entries != null) {
+            // 过滤后只剩图片文件，再排序
+            List<ListingEntry> images = new ArrayList<ListingEntry>();
+            for (ListingEntry entry : entries) {
+                if (entry.type == 0) images.add(entry);
+            }
+            ListingSorter.sort(images, ListingSorter.SORT_NAME, false);
+            for (ListingEntry entry : images) {
+                list.add(new SambaFile(entry.path));
             }
         }
         return list;
@@ -164,14 +184,81 @@ class SambaFile extends SmbFile {
 
     /**
      * 读取文件内容为字节数组
+     * 超过数组上限的文件应改用 readRange 或 readChunks
      * @return byte[]
      */
     public byte[] readAsByteArray() throws IOException {
+        long length = this.length();
+        if (length > MAX_ARRAY_SIZE) {
+            throw new IOException("File too large to read at once: " + length);
+        }
+        byte[] bytes = new byte[(int) length];
         InputStream in = this.getInputStream();
-        byte[] bytes = new byte[(int) this.length()];
-        in.read(bytes);
-        in.close();
-        return bytes;
+        int offset = 0;
+        try {
+            // 单次 read 可能只返回部分数据
+            int len = 0;
+            while (offset < bytes.length && (len = in.read(bytes, offset, bytes.length - offset)) > 0) {
+                offset += len;
+            }
+        } finally {
+            in.close();
+        }
+        return offset < bytes.length ? Arrays.copyOf(bytes, offset) : bytes;
+    }
+
+    /**
+     * 读取文件的指定区间
+     * @param long offset
+     * @param int length 超出文件末尾时只返回剩余部分
+     * @return byte[]
+     */
+    public byte[] readRange(long offset, int length) throws IOException {
+        SmbRandomAccessFile raf = new SmbRandomAccessFile(this, "r");
+        try {
+            long size = raf.length();
+            if (offset < 0 || offset > size || length < 0) {
+                throw new IOException("Range out of bounds: " + offset + "+" + length + "/" + size);
+            }
+            byte[] bytes = new byte[(int) Math.min(length, size - offset)];
+            raf.seek(offset);
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 从指定位置开始分块读取，每读满一块回调一次，内存中只保留当前块
+     * @param long offset
+     * @param long length 小于 0 表示读到文件末尾
+     * @param int chunkSize
+     * @param OnChunkListener listener
+     * @return long 实际读取的字节数
+     */
+    public long readChunks(long offset, long length, int chunkSize, OnChunkListener listener)
+        throws IOException {
+
+        SmbRandomAccessFile raf = new SmbRandomAccessFile(this, "r");
+        try {
+            long size = raf.length();
+            if (offset < 0 || offset > size) {
+                throw new IOException("Offset out of bounds: " + offset + "/" + size);
+            }
+            long end = length < 0 ? size : Math.min(size, offset + length);
+            long position = offset;
+            raf.seek(position);
+            while (position < end) {
+                byte[] chunk = new byte[(int) Math.min(chunkSize, end - position)];
+                raf.readFully(chunk);
+                listener.onChunk(chunk, position);
+                position += chunk.length;
+            }
+            return position - offset;
+        } finally {
+            raf.close();
+        }
     }
 
     /**
@@ -191,30 +278,64 @@ class SambaFile extends SmbFile {
      */
     public JSONObject upload(String localPath, OnProgressListener listener)
         throws IOException, JSONException {
+        return upload(localPath, null, listener);
+    }
+
+    /**
+     * 上传本地文件到远程路径，先写入远程 .part 文件，完成后重命名
+     * 中断后再次上传同一文件时，校验远程已写入部分的末尾后继续
+     * @param String localPath
+     * @param File journalDir 续传日志目录，为空时不支持续传
+     * @param OnProgressListener listener
+     * @return JSONObject
+     */
+    public JSONObject upload(String localPath, File journalDir, OnProgressListener listener)
+        throws IOException, JSONException {
 
         File file = new File(localPath);
-        FileInputStream in = new FileInputStream(file);
-        OutputStream out = this.getOutputStream();
-
-        long totalSize = file.length();
-        long size = 0;
-        byte[] b = new byte[BUFFER_SIZE];
-        int len = 0;
-        while((len = in.read(b)) > 0) {
-            out.write(b, 0, len);
-            size += len;
-            listener.onProgress((float) size / totalSize);
+        BufferTuner tuner = BufferTuner.forPath(this.getPath());
+        new ResumableUpload(file, this, journalDir, tuner, listener).run();
+
+        JSONObject entry = new JSONObject();
+        entry.put("name", parseName(this.getName()));
+        entry.put("ext", parseExtName(this.getName()));
+        entry.put("type", 0);
+        entry.put("path", this.getPath());
+        entry.put("size", file.length());
+        entry.put("lastModified", System.currentTimeMillis());
+        entry.put("tuning", tuner.toJSON());
+        return entry;
+    }
+
+    /**
+     * 增量上传：远程文件已存在时只写入与本地内容不同的块，不存在时整个上传
+     * 两种情况都会缓存本地文件的分块签名，供下次增量上传比较
+     * @param String localPath
+     * @param File journalDir 整个上传时的续传日志目录
+     * @param File cacheDir 签名缓存目录
+     * @param OnProgressListener listener
+     * @return JSONObject 与 upload 相同，另有 delta 统计
+     */
+    public JSONObject uploadDelta(String localPath, File journalDir, File cacheDir, OnProgressListener listener)
+        throws IOException, JSONException {
+
+        if (!this.exists()) {
+            JSONObject entry = upload(localPath, journalDir, listener);
+            DeltaUpload.saveSignatures(new File(localPath), new SambaFile(this.getPath()), cacheDir);
+            return entry;
         }
-        in.close();
-        out.close();
+
+        File file = new File(localPath);
+        JSONObject delta = new DeltaUpload(file, this, cacheDir, listener).run();
 
         JSONObject entry = new JSONObject();
         entry.put("name", parseName(this.getName()));
         entry.put("ext", parseExtName(this.getName()));
-        entry.put("type", parseType(this));
+        entry.put("type", 0);
         entry.put("path", this.getPath());
-        entry.put("size", this.length());
+        entry.put("size", file.length());
         entry.put("lastModified", System.currentTimeMillis());
+        entry.put("delta", delta);
         return entry;
     }
 
@@ -224,22 +345,31 @@ class SambaFile extends SmbFile {
      * @param OnProgressListener listener
      * @return JSONObject
      */
-    public void download(String localPath, OnProgressListener listener)
+    public JSONObject download(String localPath, OnProgressListener listener)
         throws IOException, JSONException {
-        InputStream in = this.getInputStream();
-        FileOutputStream out = new FileOutputStream(localPath);
-
-        long totalSize = this.length();
-        long size = 0;
-        byte[] b = new byte[BUFFER_SIZE];
-        int len = 0;
-        while((len = in.read(b)) > 0) {
-            out.write(b, 0, len);
-            size += len;
-            listener.onProgress((float) size / totalSize);
-        }
-        in.close();
-        out.close();
+        return download(localPath, 1, listener);
+    }
+
+    /**
+     * 将远程文件下载到本地，streams 大于 1 时分段并发下载
+     * 先写入 .part 文件，中断后再次下载同一文件时从已完成的分段继续
+     * @param String localPath
+     * @param int streams 并发连接数
+     * @param OnProgressListener listener
+     * @return JSONObject {localPath, size, tuning}
+     */
+    public JSONObject download(String localPath, int streams, OnProgressListener listener)
+        throws IOException, JSONException {
+        long length = this.length();
+        BufferTuner tuner = BufferTuner.forPath(this.getPath());
+        new ParallelDownload(this.getPath(), localPath, streams, tuner, listener)
+            .run(length, this.getLastModified());
+
+        JSONObject result = new JSONObject();
+        result.put("localPath", localPath);
+        result.put("size", length);
+        result.put("tuning", tuner.toJSON());
+        return result;
     }
 
     /**
@@ -247,7 +377,19 @@ class SambaFile extends SmbFile {
      * @return int
      */
     public int getGroupType() {
-        return getGroupType(parseExtName());
+        return MediaGroups.lookupName(this.getName());
+    }
+
+    /**
+     * 获取文件类型分组，后缀无法识别时读取文件头识别内容
+     * @return int
+     */
+    public int detectGroupType() throws IOException {
+        int group = getGroupType();
+        if (group != 0 || !this.isFile()) {
+            return group;
+        }
+        return ContentSniffer.classify(this, this.length(), this.getLastModified());
     }
 
     /**
@@ -263,33 +405,76 @@ class SambaFile extends SmbFile {
     ///////////////////////////////////////////////////////
 
     /**
-     * Parses smbfiles to arraylist
-     * @param SmbFile[] files
-     * @return List<JSONObject>
+     * 一次性枚举目录并快照所有条目属性
+     * 属性在 jcifs 处理枚举响应时（SmbFileFilter 回调内）立即读取，此时属性缓存必然有效，
+     * 之后不再为任何条目访问服务器；目录本身只查询一次属性
+     * 指定通配符时由服务器过滤，jcifs 不支持同时传入通配符和过滤器，故对返回结果立即快照
+     * @param SnapshotFilter filter
+     * @return List<ListingEntry> 路径不是目录时返回 null
      */
-    private List<JSONObject> parseToList(SmbFile[] files) throws SmbException, JSONException {
-        List<JSONObject> list = new ArrayList<JSONObject>();
-        for (SmbFile file : files) {
-            int type = file.getType();
-            if (type != SmbFile.TYPE_FILESYSTEM && type != SmbFile.TYPE_SHARE) {
-                continue;
+    private List<ListingEntry> snapshot(SnapshotFilter filter) throws SmbException {
+        ListingStats stats = new ListingStats(this.getPath());
+        try {
+            stats.call();
+            if (!this.exists() || !this.isDirectory()) {
+                return null;
             }
-            String name = file.getName();
-            if (name.endsWith("$/")) {
-                continue;
+            stats.call();
+            filter.stats = stats;
+            if (filter.entryFilter != null && filter.entryFilter.pattern != null) {
+                for (SmbFile file : this.listFiles(filter.entryFilter.pattern)) {
+                    filter.accept(file);
+                }
+            } else {
+                this.listFiles(filter);
+            }
+            return filter.entries;
+        } finally {
+            stats.finish();
+        }
+    }
+
+    /**
+     * 快照目录并识别类型组未知的文件
+     * 类型组条件在识别之后应用，否则无后缀的文件在枚举时就会被排除
+     * @param EntryFilter filter
+     * @return List<ListingEntry> 路径不是目录时返回 null
+     */
+    private List<ListingEntry> classify(EntryFilter filter) throws SmbException {
+        List<ListingEntry> list = snapshot(new SnapshotFilter(filter != null ? filter.withoutGroup() : null));
+        if (list == null) return null;
+        list = ContentSniffer.classify(list);
+        if (filter != null && filter.group != 0) {
+            List<ListingEntry> accepted = new ArrayList<ListingEntry>(list.size());
+            for (ListingEntry entry : list) {
+                if (filter.acceptGroup(entry)) accepted.add(entry);
             }
-            JSONObject entry = new JSONObject();
-            entry.put("name", parseName(name));
-            entry.put("ext", parseExtName(name));
-            entry.put("type", parseType(file));
-            entry.put("path", file.getPath());
-            entry.put("size", file.length());
-            entry.put("lastModified", file.getLastModified());
-            list.add(entry);
+            list = accepted;
         }
         return list;
     }
 
+    /**
+     * Parses smbfile to listing entry, skips hidden shares and other types
+     * 只读取枚举响应中已携带的属性
+     * @param SmbFile file
+     * @return ListingEntry
+     */
+    private ListingEntry parseEntry(SmbFile file) throws SmbException {
+        int type = file.getType();
+        if (type != SmbFile.TYPE_FILESYSTEM && type != SmbFile.TYPE_SHARE) {
+            return null;
+        }
+        String name = file.getName();
+        if (name.endsWith("$/")) {
+            return null;
+        }
+        int entryType = parseType(file);
+        int group = entryType == 0 ? MediaGroups.lookupName(name) : 0;
+        return new ListingEntry(parseName(name), parseExtName(name), entryType, group,
+            file.getPath(), file.length(), file.getLastModified());
+    }
+
     /**
      * Trims the '/' in the end.
      * @param String name
@@ -308,21 +493,6 @@ class SambaFile extends SmbFile {
         return file.isFile() ? 0 : file.getType();
     }
 
-    /**
-     * 根据后缀获取类型组
-     * @param String extname
-     * @return int
-     */
-    private int getGroupType(String extname) {
-        for (Map.Entry<Integer, String> entry : GROUP_TYPES.entrySet()) {
-            String[] exts = entry.getValue().split(",");
-            for (String ext : exts) {
-                if (ext.equalsIgnoreCase(extname)) return entry.getKey();
-            }
-        }
-        return 0;
-    }
-
     /**
      * 获取文件名后缀
      * @param String name
@@ -338,19 +508,66 @@ class SambaFile extends SmbFile {
     ///////////////////////////////////////////////////////
 
     /**
-     * 列表排序类
+     * 快照过滤器
+     * 在 jcifs 枚举目录的过程中逐条接收文件并立即读取属性、应用过滤条件，
+     * 始终返回 false 使 jcifs 不再累积 SmbFile 数组
      */
-    private class SambaComparator implements Comparator<JSONObject> {
+    private class SnapshotFilter implements SmbFileFilter {
+
+        protected final List<ListingEntry> entries = new ArrayList<ListingEntry>();
+        private final EntryFilter entryFilter;
+        private ListingStats stats;
+
+        public SnapshotFilter(EntryFilter entryFilter) {
+            this.entryFilter = entryFilter;
+        }
+
         @Override
-        public int compare(JSONObject o1, JSONObject o2) {
-            try {
-                int t1 = o1.getInt("type");
-                int t2 = o2.getInt("type");
-                if (t1 != t2) return t2 - t1;
-                return collator.compare(o1.getString("name"), o2.getString("name"));
-            } catch (JSONException e) {
-                return 0;
+        public boolean accept(SmbFile file) throws SmbException {
+            ListingEntry entry = parseEntry(file);
+            if (entry != null && (entryFilter == null || entryFilter.accept(entry, file))) {
+                stats.entry();
+                onEntry(entry);
             }
+            return false;
+        }
+
+        protected void onEntry(ListingEntry entry) {
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * 分页过滤器
+     * 满一页即回调，不保留已发送的条目
+     */
+    private class PagingFilter extends SnapshotFilter {
+
+        private final int pageSize;
+        private final OnPageListener listener;
+        private List<ListingEntry> page = new ArrayList<ListingEntry>();
+        private int total = 0;
+
+        public PagingFilter(ListingOptions options, OnPageListener listener) {
+            super(options.filter);
+            this.pageSize = options.pageSize;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void onEntry(ListingEntry entry) {
+            page.add(entry);
+            total++;
+            if (page.size() >= pageSize) flush();
+        }
+
+        // 发送剩余条目并返回总数
+        public int flush() {
+            if (page.size() > 0) {
+                listener.onPage(page);
+                page = new ArrayList<ListingEntry>();
+            }
+            return total;
         }
     }
 
@@ -360,10 +577,26 @@ class SambaFile extends SmbFile {
 
     /**
      * 文件传输（上传下载）进度回调接口
-     * 需实现 onProgress 方法
+     * 需实现 onProgress 方法，每次读写后调用，由实现方决定发送频率
      */
     public interface OnProgressListener {
-        public void onProgress(float progress);
+        public void onProgress(long loaded, long total);
+    }
+
+    /**
+     * 分页列表回调接口
+     * 需实现 onPage 方法
+     */
+    public interface OnPageListener {
+        public void onPage(List<ListingEntry> entries);
+    }
+
+    /**
+     * 分块读取回调接口
+     * 需实现 onChunk 方法
+     */
+    public interface OnChunkListener {
+        public void onChunk(byte[] chunk, long offset) throws IOException;
     }
 
 }
@@ -34,15 +34,21 @@ import android.webkit.MimeTypeMap;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaArgs;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.PluginResult;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.greatape.bmds.BufferedMediaDataSource;
 
@@ -51,6 +57,107 @@ import com.greatape.bmds.BufferedMediaDataSource;
  */
 public class SambaPlugin extends CordovaPlugin {
 
+    // JS 附加在参数末尾的请求对象的键
+    private static final String REQUEST_KEY = "__request";
+
+    // 分块读取默认块大小
+    private static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    // 未指定编号时为搜索生成编号
+    private final AtomicInteger searchIds = new AtomicInteger();
+
+    // 交互操作和后台操作分开调度
+    private final SambaExecutor executor = new SambaExecutor();
+
+    // 可取消的请求
+    private final RequestTracker requests = new RequestTracker();
+
+    // 目录列表缓存
+    private final ListingCache listingCache = new ListingCache();
+
+    // 传输队列
+    private TransferManager transferManager;
+
+    // 目录树元数据索引
+    private ShareIndex shareIndex;
+
+    // 进行中的搜索，按编号取消
+    private final Map<String, ShareSearch> searches = new ConcurrentHashMap<String, ShareSearch>();
+
+    /**
+     * 初始化传输队列，恢复上次未完成的任务
+     */
+    @Override
+    protected void pluginInitialize() {
+        shareIndex = new ShareIndex(cordova.getActivity().getApplicationContext());
+        BufferTuner.setStore(new File(cordova.getActivity().getFilesDir(), "buffer-sizes.json"));
+        File store = new File(cordova.getActivity().getFilesDir(), "transfers.json");
+        transferManager = new TransferManager(store, new TransferManager.Runner() {
+            @Override
+            public JSONObject run(TransferTask task, SambaFile.OnProgressListener listener) throws Exception {
+                if (TransferTask.TYPE_UPLOAD.equals(task.type)) {
+                    return uploadFile(task.localPath, task.path, task.delta, listener);
+                }
+                return downloadFile(task.path, task.localPath, task.streams, listener);
+            }
+            @Override
+            public void discard(TransferTask task) {
+                try {
+                    if (TransferTask.TYPE_DOWNLOAD.equals(task.type)) {
+                        new File(task.localPath + ParallelDownload.PART_SUFFIX).delete();
+                        new File(task.localPath + ParallelDownload.PART_SUFFIX + DownloadJournal.SUFFIX).delete();
+                    } else {
+                        // 与 uploadFile 相同，文件名取自解析后的本地路径
+                        Context context = cordova.getActivity().getApplicationContext();
+                        String nativePath = NativePath.parse(context, task.localPath);
+                        String fileName = nativePath.substring(nativePath.lastIndexOf("/") + 1);
+                        SambaFile part = new SambaFile(task.path + fileName + ResumableUpload.PART_SUFFIX);
+                        if (part.exists()) part.delete();
+                    }
+                } catch (Exception e) {
+                    // 临时文件删除失败不影响取消
+                }
+            }
+        }, executor.detachedBackground());
+        transferManager.start();
+    }
+
+    /**
+     * 插件销毁时停止调度器和保持连接
+     */
+    @Override
+    public void onDestroy() {
+        executor.shutdown();
+        transferManager.shutdown();
+        SessionManager.shutdown();
+    }
+
+    /**
+     * 取出 JS 附加在参数末尾的请求 {id, view}，登记后再执行
+     * 请求中提交的任务可以用 cancel(id) 取消，同一视图的新请求会取消旧请求
+     */
+    @Override
+    public boolean execute(String action, JSONArray args, CallbackContext callback) throws JSONException {
+        int last = args.length() - 1;
+        JSONObject marker = last >= 0 ? args.optJSONObject(last) : null;
+        if (marker == null || !marker.has(REQUEST_KEY)) {
+            return execute(action, new CordovaArgs(args), callback);
+        }
+
+        JSONArray actionArgs = new JSONArray();
+        for (int i = 0; i < last; i++) {
+            actionArgs.put(args.get(i));
+        }
+        JSONObject options = marker.getJSONObject(REQUEST_KEY);
+        RequestTracker.Request request = requests.begin(
+            options.optString("id", null), options.optString("view", null), callback);
+        try {
+            return execute(action, new CordovaArgs(actionArgs), callback);
+        } finally {
+            requests.endSubmit(request);
+        }
+    }
+
     /**
      * 覆盖父类方法
      */
@@ -65,24 +172,73 @@ public class SambaPlugin extends CordovaPlugin {
                 cordova.getActivity().startActivity(intent);
                 callback.success();
                 break;
-            case "auth":
-                String username = args.getString(0);
-                String password = args.getString(1);
-                SambaFile.setPrincipal(username, password);
+            case "auth": auth(args, callback); break;
+            case "executorStats":
+                JSONObject stats = executor.getStats();
+                stats.put("requests", requests.getStats());
+                callback.success(stats);
+                break;
+            case "cancel":
+                String requestId = args.getString(0);
+                ShareSearch search = searches.get(requestId);
+                if (search != null) search.cancel();
+                callback.success(requests.cancel(requestId) || search != null ? 1 : 0);
+                break;
+            case "configureExecutor":
+                JSONObject lanes = args.getJSONObject(0);
+                executor.configure(
+                    lanes.optInt("interactive", SambaExecutor.DEFAULT_INTERACTIVE),
+                    lanes.optInt("background", SambaExecutor.DEFAULT_BACKGROUND));
+                callback.success();
+                break;
+            case "sessionStats": callback.success(SessionManager.getStats()); break;
+            case "configureSessions":
+                SessionManager.setIdleTimeout(args.getJSONObject(0).optLong("idleTimeout", SessionManager.DEFAULT_IDLE_TIMEOUT));
                 callback.success();
                 break;
             case "listEntries": listEntries(args, callback); break;
+            case "search": search(args, callback); break;
+            case "indexShare": indexShare(args, callback); break;
+            case "removeIndex": removeIndex(args, callback); break;
             case "readAsText": readAsText(args, callback); break;
             case "readAsByteArray": readAsByteArray(args, callback); break;
+            case "readRange": readRange(args, callback); break;
+            case "readChunks": readChunks(args, callback); break;
+            case "openText": openText(args, callback); break;
+            case "readLines": readLines(args, callback); break;
+            case "headText": headText(args, callback); break;
+            case "tailText": tailText(args, callback); break;
             case "openImage": openImage(args, callback); break;
             case "openMedia": openMedia(args, callback); break;
             case "openFile": openFile(args, callback); break;
             case "upload": upload(args, callback); break;
             case "download": download(args, callback); break;
+            case "uploadTree": uploadTree(args, callback); break;
+            case "downloadTree": downloadTree(args, callback); break;
+            case "syncFolder": syncFolder(args, callback); break;
+            case "enqueueTransfer": enqueueTransfer(args, callback); break;
+            case "cancelTransfer": cancelTransfer(args, callback); break;
+            case "pauseTransfer":
+            case "resumeTransfer":
+            case "listTransfers":
+            case "clearTransfers":
+            case "configureTransfers":
+            case "transferEvents":
+                controlTransfers(action, args, callback);
+                break;
             case "createFile": createFile(args, callback); break;
             case "createDirectory": createDirectory(args, callback); break;
             case "delete": delete(args, callback); break;
             case "wakeOnLan": wakeOnLan(args, callback); break;
+            case "cacheStats": callback.success(listingCache.getStats()); break;
+            case "listingStats": callback.success(ListingStats.getStats()); break;
+            case "registerGroup":
+                int group = MediaGroups.register(args.getString(0), args.getJSONArray(1));
+                listingCache.clear();
+                callback.success(group);
+                break;
+            case "listGroups": callback.success(MediaGroups.toJSON()); break;
+            case "classify": classify(args, callback); break;
             default:
                 callback.error("Undefined method:" + action);
                 return false;
@@ -90,16 +246,193 @@ public class SambaPlugin extends CordovaPlugin {
         return true;
     }
 
+    /**
+     * 设置认证，参数 [username, password, {host, share, preconnect}]
+     * 指定 host 时只用于该服务器，并默认预先建立连接和会话，返回各阶段耗时
+     */
+    private void auth(CordovaArgs args, CallbackContext callback) throws JSONException {
+        String username = args.isNull(0) ? null : args.getString(0);
+        String password = args.isNull(1) ? null : args.getString(1);
+        JSONObject options = args.optJSONObject(2);
+        String host = options != null ? options.optString("host", null) : null;
+        SessionManager.setPrincipal(host, username, password);
+        listingCache.clear();
+        if (host == null || !options.optBoolean("preconnect", true)) {
+            callback.success();
+            return;
+        }
+
+        executor.interactive(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    callback.success(SessionManager.connect(host, options.optString("share", null)));
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
     /**
      * 列出目录下文件夹和文件
+     * 命中缓存时立即返回，缓存过期则在返回后校验目录修改时间并按需刷新
      */
     private void listEntries(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        executor.interactive(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SambaFile file = new SambaFile(args.getString(0));
+                    ListingOptions options = ListingOptions.parse(args.optJSONObject(1));
+                    if (options.stream) {
+                        streamEntries(file, options, callback);
+                        return;
+                    }
+                    if (options.index) {
+                        List<ListingEntry> list = shareIndex.list(indexPath(file), options.filter);
+                        if (list != null) {
+                            ListingSorter.sort(list, options.sortBy, options.descending);
+                            sendListing(callback, CompactListing.encode(file.getPath(), list, options.compact));
+                            return;
+                        }
+                    }
+
+                    String key = ListingCache.key(file.getCanonicalPath(), options.variant());
+                    ListingCache.Item item = listingCache.get(key);
+                    if (item != null) {
+                        sendListing(callback, item.result);
+                        if (item.isStale() && item.beginRevalidate()) {
+                            revalidate(file, key, item, options);
+                        }
+                        return;
+                    }
+
+                    long generation = listingCache.generation();
+                    Object result = file.listEntries(options);
+                    listingCache.put(key, result, file.getLastModified(), generation);
+                    sendListing(callback, result);
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 递归搜索名称匹配的文件
+     * 参数 [root, pattern, {id, concurrency, maxResults, maxDepth, directories, batchSize, filter, index}]
+     * 匹配结果分批通过保持的回调发送 {type: "matches", id, entries}，最后发送 {type: "complete", id, ...}
+     * index 为 true 且根目录已编入索引时从索引中查找
+     */
+    private void search(CordovaArgs args, CallbackContext callback) throws JSONException {
+        String path = args.getString(0);
+        final String root = path.endsWith("/") ? path : path + "/";
+        final String pattern = args.isNull(1) ? null : args.getString(1);
+        JSONObject json = args.optJSONObject(2);
+        final JSONObject options = json != null ? json : new JSONObject();
+        final String id = options.optString("id", "search-" + searchIds.incrementAndGet());
+
+        final ShareSearch search = new ShareSearch(
+            root,
+            pattern,
+            EntryFilter.parse(options.optJSONObject("filter")),
+            options.optBoolean("directories", true),
+            options.optInt("maxDepth", -1),
+            options.optInt("concurrency", ShareSearch.DEFAULT_CONCURRENCY),
+            options.optInt("maxResults", ShareSearch.DEFAULT_MAX_RESULTS),
+            options.optInt("batchSize", ShareSearch.DEFAULT_BATCH_SIZE),
+            new ShareSearch.OnBatchListener() {
+                @Override
+                public void onBatch(List<ListingEntry> entries) {
+                    try {
+                        JSONObject event = new JSONObject();
+                        event.put("type", "matches");
+                        event.put("id", id);
+                        event.put("entries", CompactListing.toJSONArray(entries));
+                        PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+                        result.setKeepCallback(true);
+                        callback.sendPluginResult(result);
+                    } catch (JSONException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        );
+        // 排队前登记，后台通道繁忙时 cancel 也能找到；排队期间被取消的搜索开始后立即结束
+        searches.put(id, search);
+        executor.background(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!search.isCancelled() && options.optBoolean("index")
+                        && searchIndex(root, pattern, options, id, callback)) {
+                        return;
+                    }
+                    JSONObject result = search.run();
+                    result.put("type", "complete");
+                    result.put("id", id);
+                    callback.success(result);
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                } finally {
+                    searches.remove(id);
+                }
+            }
+        });
+    }
+
+    /**
+     * 索引或增量刷新目录树，之后 listEntries 和 search 可以指定 index 从索引中读取
+     * 参数 [root, {full, concurrency}]
+     */
+    private void indexShare(CordovaArgs args, CallbackContext callback) {
+        executor.background(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String root = indexPath(new SambaFile(args.getString(0)));
+                    JSONObject options = args.optJSONObject(1);
+                    if (options == null) options = new JSONObject();
+                    callback.success(shareIndex.refresh(
+                        root,
+                        options.optBoolean("full"),
+                        options.optInt("concurrency", ShareIndex.DEFAULT_CONCURRENCY)
+                    ));
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 删除目录树的索引
+     */
+    private void removeIndex(CordovaArgs args, CallbackContext callback) {
+        executor.interactive(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    shareIndex.remove(indexPath(new SambaFile(args.getString(0))));
+                    callback.success();
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 识别文件类型组，后缀无法识别时读取文件头
+     */
+    private void classify(CordovaArgs args, CallbackContext callback) {
+        executor.interactive(new Runnable() {
             @Override
             public void run() {
                 try {
                     SambaFile file = new SambaFile(args.getString(0));
-                    callback.success(file.listEntries());
+                    callback.success(file.detectGroupType());
                 } catch (Exception e) {
                     callback.error(e.getMessage());
                 }
@@ -111,7 +444,7 @@ public class SambaPlugin extends CordovaPlugin {
      * 读取文本文件
      */
     private void readAsText(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        executor.interactive(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -128,7 +461,7 @@ public class SambaPlugin extends CordovaPlugin {
      * 读取文件为字节数组
      */
     private void readAsByteArray(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        executor.interactive(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -141,16 +474,152 @@ public class SambaPlugin extends CordovaPlugin {
         });
     }
 
+    /**
+     * 读取文件的指定区间
+     */
+    private void readRange(CordovaArgs args, CallbackContext callback) {
+        executor.interactive(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SambaFile file = new SambaFile(args.getString(0));
+                    callback.success(file.readRange(args.getLong(1), args.getInt(2)));
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 分块读取文件
+     * 每块以 ArrayBuffer 发送并保留回调，结束时发送 {type: "complete", offset, length}
+     */
+    private void readChunks(CordovaArgs args, CallbackContext callback) {
+        executor.background(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SambaFile file = new SambaFile(args.getString(0));
+                    JSONObject options = args.optJSONObject(1);
+                    if (options == null) options = new JSONObject();
+                    long offset = options.optLong("offset", 0);
+                    int chunkSize = Math.max(options.optInt("chunkSize", DEFAULT_CHUNK_SIZE), 1);
+
+                    long length = file.readChunks(offset, options.optLong("length", -1), chunkSize,
+                        new SambaFile.OnChunkListener() {
+                            @Override
+                            public void onChunk(byte[] chunk, long position) {
+                                PluginResult result = new PluginResult(PluginResult.Status.OK, chunk);
+                                result.setKeepCallback(true);
+                                callback.sendPluginResult(result);
+                            }
+                        });
+
+                    JSONObject event = new JSONObject();
+                    event.put("type", "complete");
+                    event.put("offset", offset);
+                    event.put("length", length);
+                    callback.success(event);
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 打开大文本文件，返回编码和行索引状态，并在后台建立行索引
+     */
+    private void openText(CordovaArgs args, CallbackContext callback) {
+        executor.interactive(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TextDocument document = TextDocument.open(args.getString(0));
+                    if (document.beginIndexing()) {
+                        executor.background(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    document.buildIndex();
+                                } catch (IOException e) {
+                                    // 索引未完成时从最近的检查点扫描，下次打开时继续
+                                }
+                            }
+                        });
+                    }
+                    callback.success(document.toJSON());
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 读取文本的行区间
+     */
+    private void readLines(CordovaArgs args, CallbackContext callback) {
+        executor.interactive(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TextDocument document = TextDocument.open(args.getString(0));
+                    callback.success(document.readLines(args.getLong(1), args.getInt(2)));
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 读取文本开头若干行
+     */
+    private void headText(CordovaArgs args, CallbackContext callback) {
+        executor.interactive(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TextDocument document = TextDocument.open(args.getString(0));
+                    callback.success(document.head(args.getInt(1)));
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 读取文本末尾若干行
+     */
+    private void tailText(CordovaArgs args, CallbackContext callback) {
+        executor.interactive(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TextDocument document = TextDocument.open(args.getString(0));
+                    callback.success(document.tail(args.getInt(1)));
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
     /**
      * 创建文件
      */
     private void createFile(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        executor.interactive(new Runnable() {
             @Override
             public void run() {
                 try {
                     SambaFile file = new SambaFile(args.getString(0));
-                    callback.success(file.createFile());
+                    JSONObject entry = file.createFile();
+                    listingCache.invalidateTree(file.getCanonicalPath());
+                    callback.success(entry);
                 } catch (Exception e) {
                     callback.error(e.getMessage());
                 }
@@ -162,12 +631,14 @@ public class SambaPlugin extends CordovaPlugin {
      * 创建文件夹
      */
     private void createDirectory(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        executor.interactive(new Runnable() {
             @Override
             public void run() {
                 try {
                     SambaFile file = new SambaFile(args.getString(0));
-                    callback.success(file.createDirectory());
+                    JSONObject entry = file.createDirectory();
+                    listingCache.invalidateTree(file.getCanonicalPath());
+                    callback.success(entry);
                 } catch (Exception e) {
                     callback.error(e.getMessage());
                 }
@@ -179,12 +650,13 @@ public class SambaPlugin extends CordovaPlugin {
      * 删除文件夹或文件
      */
     private void delete(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        executor.interactive(new Runnable() {
             @Override
             public void run() {
                 try {
                     SambaFile file = new SambaFile(args.getString(0));
                     file.delete();
+                    listingCache.invalidateTree(file.getCanonicalPath());
                     callback.success();
                 } catch (Exception e) {
                     callback.error(e.getMessage());
@@ -197,27 +669,61 @@ public class SambaPlugin extends CordovaPlugin {
      * 上传文件
      */
     private void upload(CordovaArgs args, CallbackContext callback) throws JSONException {
-        cordova.getThreadPool().execute(new Runnable() {
+        executor.background(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject options = args.optJSONObject(2);
+                    boolean delta = options != null && options.optBoolean("delta", false);
+                    callback.success(uploadFile(args.getString(0), args.getString(1), delta, progressReporter(options, callback)));
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 下载文件
+     */
+    private void download(CordovaArgs args, CallbackContext callback) throws JSONException {
+        executor.background(new Runnable() {
             @Override
             public void run() {
                 try {
-                    String localPath = args.getString(0);
-                    String smbPath = args.getString(1);
+                    String smbPath = args.getString(0);
+                    JSONObject options = args.optJSONObject(1);
+                    int streams = options != null ? options.optInt("streams", 1) : 1;
+                    String localPath = downloadPath(smbPath);
+                    downloadFile(smbPath, localPath, streams, progressReporter(options, callback));
+                    callback.success(localPath);
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
 
-                    // 将路径解析为本地原生路径
+    /**
+     * 上传本地目录到远程目录
+     * 参数 [localDir, smbDir, {workers, id, progressRate}]
+     */
+    private void uploadTree(CordovaArgs args, CallbackContext callback) throws JSONException {
+        executor.background(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject options = args.optJSONObject(2);
                     Context context = cordova.getActivity().getApplicationContext();
-                    String nativePath = NativePath.parse(context, localPath);
-                    // 获取要上传文件的文件名
-                    int index = nativePath.lastIndexOf("/");
-                    String fileName = nativePath.substring(index + 1);
+                    String nativePath = NativePath.parse(context, args.getString(0));
+                    if (nativePath.endsWith("/")) {
+                        nativePath = nativePath.substring(0, nativePath.length() - 1);
+                    }
+                    String smbDir = args.getString(1) + nativePath.substring(nativePath.lastIndexOf("/") + 1) + "/";
 
-                    SambaFile smbFile = new SambaFile(smbPath + fileName);
-                    JSONObject result = smbFile.upload(nativePath, new SambaFile.OnProgressListener() {
-                        @Override
-                        public void onProgress(float progress) {
-                            webView.sendJavascript("window.samba.onProgress(" + progress + ")");
-                        }
-                    });
+                    TreeTransfer transfer = treeTransfer(options, new File(context.getCacheDir(), "uploads"), callback);
+                    JSONObject result = transfer.upload(nativePath, smbDir);
+                    listingCache.invalidateTree(new SambaFile(smbDir).getCanonicalPath());
                     callback.success(result);
                 } catch (Exception e) {
                     callback.error(e.getMessage());
@@ -227,33 +733,145 @@ public class SambaPlugin extends CordovaPlugin {
     }
 
     /**
-     * 下载文件
+     * 下载远程目录到本地，默认保存到下载目录下的同名目录
+     * 参数 [smbDir, {localPath, workers, id, progressRate}]
      */
-    private void download(CordovaArgs args, CallbackContext callback) throws JSONException {
-        cordova.getThreadPool().execute(new Runnable() {
+    private void downloadTree(CordovaArgs args, CallbackContext callback) throws JSONException {
+        executor.background(new Runnable() {
             @Override
             public void run() {
                 try {
-                    String smbPath = args.getString(0);
-                    String fileName = smbPath.substring(smbPath.lastIndexOf("/"));
-                    SambaFile smbFile = new SambaFile(smbPath);
-                    String localPath = getExternalStoragePath(smbFile.getGroupType()) + fileName;
+                    String smbDir = args.getString(0);
+                    if (!smbDir.endsWith("/")) smbDir += "/";
+                    JSONObject options = args.optJSONObject(1);
+                    String localDir = options != null ? options.optString("localPath", null) : null;
+                    if (localDir == null) {
+                        String name = smbDir.substring(smbDir.lastIndexOf("/", smbDir.length() - 2) + 1, smbDir.length() - 1);
+                        localDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS) + "/" + name;
+                    }
 
-                    smbFile.download(localPath, new SambaFile.OnProgressListener() {
-                        @Override
-                        public void onProgress(float progress) {
-                            webView.sendJavascript("window.samba.onProgress(" + progress + ")");
-                        }
-                    });
+                    TreeTransfer transfer = treeTransfer(options, null, callback);
+                    JSONObject result = transfer.download(smbDir, localDir);
 
                     // 更新系统相册
-                    MediaScannerConnection.scanFile(
-                        cordova.getActivity(),
-                        new String[]{ localPath },
-                        new String[]{ getMimeType(localPath) },
-                        null
+                    List<String> files = transfer.completedFiles();
+                    String[] mimeTypes = new String[files.size()];
+                    for (int i = 0; i < mimeTypes.length; i++) {
+                        mimeTypes[i] = getMimeType(files.get(i));
+                    }
+                    MediaScannerConnection.scanFile(cordova.getActivity(), files.toArray(new String[0]), mimeTypes, null);
+                    callback.success(result);
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 双向同步本地目录和远程目录，只传输上次同步后变化的文件
+     * 参数 [localDir, smbDir, {policy, hash, deletes, workers, id, progressRate}]
+     */
+    private void syncFolder(CordovaArgs args, CallbackContext callback) throws JSONException {
+        executor.background(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Context context = cordova.getActivity().getApplicationContext();
+                    String localDir = NativePath.parse(context, args.getString(0));
+                    String smbDir = args.getString(1);
+                    if (!smbDir.endsWith("/")) smbDir += "/";
+                    JSONObject options = args.optJSONObject(2);
+                    if (options == null) options = new JSONObject();
+
+                    SyncManifest manifest = SyncManifest.open(new File(context.getFilesDir(), "sync"), localDir, smbDir);
+                    ProgressReporter reporter = progressReporter(options, callback);
+                    FolderSync sync = new FolderSync(
+                        manifest,
+                        options.optString("policy", FolderSync.POLICY_NEWER),
+                        options.optBoolean("hash", false),
+                        options.optBoolean("deletes", true),
+                        options.optInt("workers", TreeTransfer.DEFAULT_WORKERS),
+                        new File(context.getCacheDir(), "uploads"),
+                        fileEvents(options, reporter.getId(), callback),
+                        reporter
                     );
-                    callback.success(localPath);
+                    JSONObject result = sync.run();
+                    listingCache.invalidateTree(new SambaFile(smbDir).getCanonicalPath());
+                    callback.success(result);
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 加入传输队列
+     * 参数 {type: "upload"|"download", path, localPath, priority, streams, id}
+     */
+    private void enqueueTransfer(CordovaArgs args, CallbackContext callback) {
+        executor.interactive(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject json = args.getJSONObject(0);
+                    // 编号由保存在队列中的顺序生成，重启后不会与恢复的任务重复
+                    long sequence = transferManager.nextSequence();
+                    TransferTask task = TransferTask.fromJSON(json, "transfer-" + sequence, sequence);
+                    if (TransferTask.TYPE_DOWNLOAD.equals(task.type) && task.localPath == null) {
+                        task.localPath = downloadPath(task.path);
+                    }
+                    if (TransferTask.TYPE_UPLOAD.equals(task.type) && task.localPath == null) {
+                        throw new JSONException("localPath is required for upload");
+                    }
+                    callback.success(transferManager.enqueue(task).toJSON());
+                } catch (Exception e) {
+                    callback.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 传输队列操作：暂停、恢复、取消、列表、清除已结束、设置并发数和事件回调
+     */
+    private void controlTransfers(String action, CordovaArgs args, CallbackContext callback) {
+        try {
+            switch (action) {
+                case "pauseTransfer": transferManager.pause(args.getString(0)); break;
+                case "resumeTransfer": transferManager.resume(args.getString(0)); break;
+                case "clearTransfers": transferManager.clearFinished(); break;
+                case "configureTransfers":
+                    JSONObject options = args.getJSONObject(0);
+                    transferManager.configure(
+                        options.optInt("maxConcurrent", TransferManager.DEFAULT_MAX_CONCURRENT),
+                        options.optInt("maxPerServer", TransferManager.DEFAULT_MAX_PER_SERVER));
+                    break;
+                case "listTransfers": callback.success(transferManager.list()); return;
+                case "transferEvents":
+                    transferManager.setEventCallback(callback);
+                    PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+                    result.setKeepCallback(true);
+                    callback.sendPluginResult(result);
+                    return;
+            }
+            callback.success();
+        } catch (Exception e) {
+            callback.error(e.getMessage());
+        }
+    }
+
+    /**
+     * 取消传输，删除临时文件可能访问服务器，在线程池中执行
+     */
+    private void cancelTransfer(CordovaArgs args, CallbackContext callback) {
+        executor.interactive(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transferManager.cancel(args.getString(0));
+                    callback.success();
                 } catch (Exception e) {
                     callback.error(e.getMessage());
                 }
@@ -265,7 +883,7 @@ public class SambaPlugin extends CordovaPlugin {
      * 用本地应用打开文件
      */
     private void openFile(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        executor.interactive(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -290,14 +908,17 @@ public class SambaPlugin extends CordovaPlugin {
      * 打开图片
      */
     private void openImage(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        executor.interactive(new Runnable() {
             @Override
             public void run() {
                 try {
                     String path = args.getString(0);
                     String parentPath = path.substring(0, path.lastIndexOf("/") + 1);
                     SambaFile directory = new SambaFile(parentPath);
-                    List<SambaFile> imageFiles = directory.listImages();
+                    EntryFilter filter = EntryFilter.parse(args.optJSONObject(1));
+                    // 打开的文件本身后缀无法识别时，同目录下的此类文件也按内容识别
+                    boolean sniff = MediaGroups.lookupName(path) == 0;
+                    List<SambaFile> imageFiles = directory.listImages(filter, sniff);
 
                     GalleryActivity.gallerySource = new GallerySource() {
                         @Override
@@ -335,7 +956,7 @@ public class SambaPlugin extends CordovaPlugin {
      * 打开音频或视频
      */
     private void openMedia(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        executor.interactive(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -357,7 +978,7 @@ public class SambaPlugin extends CordovaPlugin {
      * 网络唤醒
      */
     private void wakeOnLan(CordovaArgs args, CallbackContext callback) {
-        cordova.getThreadPool().execute(new Runnable() {
+        executor.interactive(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -376,6 +997,188 @@ public class SambaPlugin extends CordovaPlugin {
     // 私有工具方法
     ///////////////////////////////////////////////////////
 
+    /**
+     * 为传输创建进度汇总，事件发送到该传输的回调上
+     * @param JSONObject options {id, progressRate}
+     * @param CallbackContext callback
+     * @return ProgressReporter
+     */
+    private ProgressReporter progressReporter(JSONObject options, CallbackContext callback) {
+        String id = options != null ? options.optString("id", null) : null;
+        if (id == null) id = "transfer-" + transferManager.nextSequence();
+        int rate = options != null ? options.optInt("progressRate", ProgressReporter.DEFAULT_RATE) : ProgressReporter.DEFAULT_RATE;
+        return new ProgressReporter(id, callback, rate);
+    }
+
+    /**
+     * 创建目录传输，总进度和每个文件的进度都通过 callback 发送
+     * @param JSONObject options {workers, id, progressRate}
+     * @param File journalDir
+     * @param CallbackContext callback
+     * @return TreeTransfer
+     */
+    private TreeTransfer treeTransfer(JSONObject options, File journalDir, CallbackContext callback) {
+        ProgressReporter reporter = progressReporter(options, callback);
+        int workers = options != null ? options.optInt("workers", TreeTransfer.DEFAULT_WORKERS) : TreeTransfer.DEFAULT_WORKERS;
+        return new TreeTransfer(workers, journalDir, fileEvents(options, reporter.getId(), callback), reporter);
+    }
+
+    /**
+     * 目录传输和同步中单个文件的事件：带 path 的进度事件，
+     * 文件结束时发送 {type: "file", id, path, size, state: "completed"|"failed", error}
+     * @param JSONObject options {progressRate}
+     * @param String id
+     * @param CallbackContext callback
+     * @return OnFileListener
+     */
+    private TreeTransfer.OnFileListener fileEvents(JSONObject options, String id, CallbackContext callback) {
+        int rate = options != null ? options.optInt("progressRate", ProgressReporter.DEFAULT_RATE) : ProgressReporter.DEFAULT_RATE;
+        return new TreeTransfer.OnFileListener() {
+            @Override
+            public SambaFile.OnProgressListener onStart(String path, long size) {
+                return new ProgressReporter(id, path, callback, rate);
+            }
+            @Override
+            public void onFinish(String path, long size, String error) {
+                try {
+                    JSONObject event = new JSONObject();
+                    event.put("type", "file");
+                    event.put("id", id);
+                    event.put("path", path);
+                    event.put("size", size);
+                    event.put("state", error == null ? "completed" : "failed");
+                    event.put("error", error);
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+                    result.setKeepCallback(true);
+                    callback.sendPluginResult(result);
+                } catch (JSONException e) {
+                    // 事件失败不影响传输
+                }
+            }
+        };
+    }
+
+    /**
+     * 从索引中搜索，一次性分批发送结果
+     * @return boolean 根目录未编入索引时返回 false
+     */
+    private boolean searchIndex(String root, String pattern, JSONObject options, String id, CallbackContext callback)
+        throws IOException, JSONException {
+
+        long startTime = System.currentTimeMillis();
+        int maxResults = Math.max(options.optInt("maxResults", ShareSearch.DEFAULT_MAX_RESULTS), 1);
+        int batchSize = Math.max(options.optInt("batchSize", ShareSearch.DEFAULT_BATCH_SIZE), 1);
+        List<ListingEntry> list = shareIndex.search(
+            indexPath(new SambaFile(root)),
+            pattern,
+            EntryFilter.parse(options.optJSONObject("filter")),
+            options.optBoolean("directories", true),
+            options.optInt("maxDepth", -1),
+            maxResults
+        );
+        if (list == null) return false;
+
+        boolean truncated = list.size() > maxResults;
+        if (truncated) list = list.subList(0, maxResults);
+        for (int i = 0; i < list.size(); i += batchSize) {
+            JSONObject event = new JSONObject();
+            event.put("type", "matches");
+            event.put("id", id);
+            event.put("entries", CompactListing.toJSONArray(list.subList(i, Math.min(i + batchSize, list.size()))));
+            PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+            result.setKeepCallback(true);
+            callback.sendPluginResult(result);
+        }
+
+        JSONObject event = new JSONObject();
+        event.put("type", "complete");
+        event.put("id", id);
+        event.put("total", list.size());
+        event.put("truncated", truncated);
+        event.put("cancelled", false);
+        event.put("source", "index");
+        event.put("elapsed", System.currentTimeMillis() - startTime);
+        callback.success(event);
+        return true;
+    }
+
+    /**
+     * 索引中的目录路径：规范路径并以 / 结尾
+     */
+    private String indexPath(SambaFile file) {
+        String path = file.getCanonicalPath();
+        return path.endsWith("/") ? path : path + "/";
+    }
+
+    /**
+     * 分页发送目录列表
+     * 每页通过保持的回调发送 {type: "page"}，最后发送 {type: "complete"}
+     */
+    private void streamEntries(SambaFile file, ListingOptions options, CallbackContext callback)
+        throws IOException, JSONException {
+
+        int total = file.listEntries(options, new SambaFile.OnPageListener() {
+            @Override
+            public void onPage(List<ListingEntry> entries) {
+                try {
+                    Object event = CompactListing.page(file.getPath(), entries, options.compact);
+                    PluginResult result = event instanceof String
+                        ? new PluginResult(PluginResult.Status.OK, (String) event)
+                        : new PluginResult(PluginResult.Status.OK, (JSONObject) event);
+                    result.setKeepCallback(true);
+                    callback.sendPluginResult(result);
+                } catch (JSONException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        if (total < 0) {
+            callback.error("Not a directory: " + file.getPath());
+            return;
+        }
+
+        JSONObject event = new JSONObject();
+        event.put("type", "complete");
+        event.put("total", total);
+        callback.success(event);
+    }
+
+    /**
+     * 发送目录列表，列表可能是对象数组或紧凑格式的 JSON 文本
+     */
+    private void sendListing(CallbackContext callback, Object result) {
+        if (result instanceof String) {
+            callback.success((String) result);
+        } else {
+            callback.success((JSONArray) result);
+        }
+    }
+
+    /**
+     * 在后台通道校验缓存的目录列表，不占用交互通道的线程
+     * 目录修改时间未变则仅刷新校验时间，否则重新列出并替换缓存
+     */
+    private void revalidate(SambaFile file, String key, ListingCache.Item item, ListingOptions options) {
+        executor.background(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listingCache.onRevalidate();
+                    long generation = listingCache.generation();
+                    if (file.lastModified() == item.lastModified) {
+                        listingCache.touch(key);
+                    } else {
+                        listingCache.put(key, file.listEntries(options), file.getLastModified(), generation);
+                    }
+                } catch (Exception e) {
+                    listingCache.invalidate(key);
+                } finally {
+                    item.endRevalidate();
+                }
+            }
+        });
+    }
+
     /**
      * 根据文件路径获取 MimeType
      */
@@ -384,6 +1187,66 @@ public class SambaPlugin extends CordovaPlugin {
         return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
     }
 
+    /**
+     * 上传本地文件到远程目录，文件名不变
+     * @param String localPath
+     * @param String smbPath 远程目录
+     * @param OnProgressListener listener
+     * @return JSONObject
+     */
+    private JSONObject uploadFile(String localPath, String smbPath, boolean delta, SambaFile.OnProgressListener listener)
+        throws Exception {
+
+        // 将路径解析为本地原生路径
+        Context context = cordova.getActivity().getApplicationContext();
+        String nativePath = NativePath.parse(context, localPath);
+        // 获取要上传文件的文件名
+        int index = nativePath.lastIndexOf("/");
+        String fileName = nativePath.substring(index + 1);
+
+        SambaFile smbFile = new SambaFile(smbPath + fileName);
+        File journalDir = new File(context.getCacheDir(), "uploads");
+        JSONObject result = delta
+            ? smbFile.uploadDelta(nativePath, journalDir, new File(context.getCacheDir(), "signatures"), listener)
+            : smbFile.upload(nativePath, journalDir, listener);
+        listingCache.invalidateTree(smbFile.getCanonicalPath());
+        return result;
+    }
+
+    /**
+     * 下载远程文件并更新系统相册
+     * @param String smbPath
+     * @param String localPath
+     * @param int streams
+     * @param OnProgressListener listener
+     * @return JSONObject {localPath, size, tuning}
+     */
+    private JSONObject downloadFile(String smbPath, String localPath, int streams, SambaFile.OnProgressListener listener)
+        throws IOException, JSONException {
+
+        SambaFile smbFile = new SambaFile(smbPath);
+        JSONObject result = smbFile.download(localPath, streams, listener);
+
+        // 更新系统相册
+        MediaScannerConnection.scanFile(
+            cordova.getActivity(),
+            new String[]{ localPath },
+            new String[]{ getMimeType(localPath) },
+            null
+        );
+        return result;
+    }
+
+    /**
+     * 根据类型组确定下载的本地路径
+     * @param String smbPath
+     * @return String
+     */
+    private String downloadPath(String smbPath) {
+        String fileName = smbPath.substring(smbPath.lastIndexOf("/"));
+        return getExternalStoragePath(MediaGroups.lookupName(fileName)) + fileName;
+    }
+
     /**
      * 根据文件类型获取本地下载目录
      */
@@ -0,0 +1,118 @@
+package net.cloudseat.smbova;
+
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 目录列表的返回格式
+ * 默认为对象数组；紧凑格式为按列存放的并列数组，父路径只发送一次，
+ * 条目路径由 JS 按 parent + name + (type ? '/' : '') 还原
+ * 紧凑格式直接生成 JSON 文本，以字符串发送，由 JS 解析
+ */
+public class CompactListing {
+
+    // 估算每个条目的输出长度，减少 StringBuilder 扩容
+    private static final int BYTES_PER_ENTRY = 48;
+
+    /**
+     * 按参数选择返回格式
+     * @param String parent 父目录路径
+     * @param List<ListingEntry> list
+     * @param boolean compact
+     * @return Object JSONArray 或紧凑格式的 JSON 文本
+     */
+    public static Object encode(String parent, List<ListingEntry> list, boolean compact) throws JSONException {
+        return compact ? write(parent, list) : toJSONArray(list);
+    }
+
+    /**
+     * 对象数组格式
+     * @param List<ListingEntry> list
+     * @return JSONArray
+     */
+    public static JSONArray toJSONArray(List<ListingEntry> list) throws JSONException {
+        JSONArray entries = new JSONArray();
+        for (ListingEntry entry : list) {
+            entries.put(entry.toJSON());
+        }
+        return entries;
+    }
+
+    /**
+     * 分页事件 {type: "page", entries}，entries 的格式同 encode
+     * @param String parent
+     * @param List<ListingEntry> list
+     * @param boolean compact
+     * @return Object JSONObject 或紧凑格式的 JSON 文本
+     */
+    public static Object page(String parent, List<ListingEntry> list, boolean compact) throws JSONException {
+        if (!compact) {
+            JSONObject event = new JSONObject();
+            event.put("type", "page");
+            event.put("entries", toJSONArray(list));
+            return event;
+        }
+        // 紧凑格式的整个事件都由写入器生成
+        JsonStreamWriter writer = new JsonStreamWriter(96 + list.size() * BYTES_PER_ENTRY);
+        writer.beginObject();
+        writer.name("type").value("page");
+        writer.name("entries");
+        write(writer, parent, list);
+        writer.endObject();
+        return writer.toString();
+    }
+
+    /**
+     * 紧凑格式
+     * {parent, count, name: [], ext: [], type: [], group: [], size: [], lastModified: []}
+     * @param String parent
+     * @param List<ListingEntry> list
+     * @return String JSON 文本
+     */
+    public static String write(String parent, List<ListingEntry> list) {
+        JsonStreamWriter writer = new JsonStreamWriter(64 + list.size() * BYTES_PER_ENTRY);
+        write(writer, parent, list);
+        return writer.toString();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private static void write(JsonStreamWriter writer, String parent, List<ListingEntry> list) {
+        int count = list.size();
+        writer.beginObject();
+        writer.name("parent").value(parent);
+        writer.name("count").value(count);
+
+        writer.name("name").beginArray();
+        for (int i = 0; i < count; i++) writer.value(list.get(i).name);
+        writer.endArray();
+
+        writer.name("ext").beginArray();
+        for (int i = 0; i < count; i++) writer.value(list.get(i).ext);
+        writer.endArray();
+
+        writer.name("type").beginArray();
+        for (int i = 0; i < count; i++) writer.value(list.get(i).type);
+        writer.endArray();
+
+        writer.name("group").beginArray();
+        for (int i = 0; i < count; i++) writer.value(list.get(i).group);
+        writer.endArray();
+
+        writer.name("size").beginArray();
+        for (int i = 0; i < count; i++) writer.value(list.get(i).size);
+        writer.endArray();
+
+        writer.name("lastModified").beginArray();
+        for (int i = 0; i < count; i++) writer.value(list.get(i).lastModified);
+        writer.endArray();
+
+        writer.endObject();
+    }
+
+}
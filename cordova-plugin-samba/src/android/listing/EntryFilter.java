@@ -0,0 +1,101 @@
+package net.cloudseat.smbova;
+
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+
+import org.json.JSONObject;
+
+/**
+ * 目录列表过滤条件
+ * 通配符交给服务器（jcifs listFiles(String wildcard)）处理，
+ * 其余条件在枚举回调中应用，先于构建 JSON 和排序
+ * 类型组与大小只作用于文件，文件夹始终保留以便继续浏览
+ */
+public class EntryFilter {
+
+    // 不含隐藏文件和系统文件，不限类型组和大小，用于遍历目录树
+    public static final EntryFilter VISIBLE = new EntryFilter(null, 0, false, 0, Long.MAX_VALUE);
+
+    // 通配符，如 *.jpg，为空表示不限
+    public final String pattern;
+    // 类型组，0 表示不限
+    public final int group;
+    // 是否包含隐藏和系统文件
+    public final boolean hidden;
+    public final long minSize;
+    public final long maxSize;
+
+    public EntryFilter(String pattern, int group, boolean hidden, long minSize, long maxSize) {
+        this.pattern = pattern;
+        this.group = group;
+        this.hidden = hidden;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 解析 JS 传入的 filter 对象
+     * @param JSONObject filter
+     * @return EntryFilter 未指定任何条件时返回 null
+     */
+    public static EntryFilter parse(JSONObject filter) {
+        if (filter == null || filter.length() == 0) {
+            return null;
+        }
+        String pattern = filter.optString("pattern", null);
+        return new EntryFilter(
+            pattern == null || pattern.isEmpty() || pattern.equals("*") ? null : pattern,
+            filter.optInt("group", 0),
+            filter.optBoolean("hidden", true),
+            filter.optLong("minSize", 0),
+            filter.optLong("maxSize", Long.MAX_VALUE)
+        );
+    }
+
+    /**
+     * 判断条目是否保留
+     * 在枚举回调中调用，此时文件属性仍在 jcifs 缓存内，不会访问服务器
+     * @param ListingEntry entry
+     * @param SmbFile file
+     * @return boolean
+     */
+    public boolean accept(ListingEntry entry, SmbFile file) throws SmbException {
+        if (!hidden && (file.getAttributes() & (SmbFile.ATTR_HIDDEN | SmbFile.ATTR_SYSTEM)) != 0) {
+            return false;
+        }
+        if (entry.type != 0) {
+            return true;
+        }
+        if (entry.size < minSize || entry.size > maxSize) {
+            return false;
+        }
+        return group == 0 || entry.group == group;
+    }
+
+    /**
+     * 去掉类型组条件的副本，用于内容识别前的枚举，识别后再用 acceptGroup 过滤
+     * @return EntryFilter
+     */
+    public EntryFilter withoutGroup() {
+        return new EntryFilter(pattern, 0, hidden, minSize, maxSize);
+    }
+
+    /**
+     * 判断条目是否符合类型组条件
+     * @param ListingEntry entry
+     * @return boolean
+     */
+    public boolean acceptGroup(ListingEntry entry) {
+        return entry.type != 0 || group == 0 || entry.group == group;
+    }
+
+    /**
+     * 条件组合，用作缓存键的一部分
+     * @return String
+     */
+    @Override
+    public String toString() {
+        return pattern + ":" + group + ":" + hidden + ":" + minSize + ":" + maxSize;
+    }
+
+}
@@ -0,0 +1,200 @@
+package net.cloudseat.smbova;
+
+import android.util.LruCache;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 目录列表内存缓存
+ * 以服务器+路径（及排序方式）为键缓存 listEntries 的结果，过期后先返回旧数据再后台校验
+ */
+public class ListingCache {
+
+    // 缓存条目数量上限
+    private static final int MAX_ENTRIES = 64;
+    // 新鲜期：在此期间直接返回，不做校验
+    private static final long FRESH_MILLIS = 10 * 1000;
+    // 最长保留时间：目录修改时间不反映子文件大小变化，超过后视为未命中，重新列出
+    private static final long MAX_AGE_MILLIS = 5 * 60 * 1000;
+
+    // 路径与排序方式之间的分隔符，SMB 文件名中不允许出现
+    private static final char KEY_SEPARATOR = '|';
+
+    private final LruCache<String, Item> cache = new LruCache<String, Item>(MAX_ENTRIES);
+
+    // 命中统计
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    // 失效代数：列出期间发生过失效则丢弃该次结果，防止旧数据写回缓存
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * 生成缓存键
+     * @param String path 目录路径
+     * @param String variant 排序方式等影响结果的参数
+     * @return String
+     */
+    public static String key(String path, String variant) {
+        return path + KEY_SEPARATOR + variant;
+    }
+
+    /**
+     * 根据缓存键获取缓存条目，超过最长保留时间的条目按未命中处理
+     * @param String key
+     * @return Item 未命中时返回 null
+     */
+    public Item get(String key) {
+        Item item = cache.get(key);
+        if (item == null || System.currentTimeMillis() - item.createdAt > MAX_AGE_MILLIS) {
+            if (item != null) cache.remove(key);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return item;
+    }
+
+    /**
+     * 当前失效代数，应在开始列出目录之前获取
+     * @return long
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * 写入缓存
+     * @param String key
+     * @param Object result JSONArray 或紧凑格式的 JSON 文本
+     * @param long lastModified 目录最后修改时间
+     * @param long generation 开始列出时的失效代数
+     */
+    public void put(String key, Object result, long lastModified, long generation) {
+        if (result != null && generation == this.generation.get()) {
+            cache.put(key, new Item(result, lastModified));
+        }
+    }
+
+    /**
+     * 目录未变化时刷新条目的校验时间
+     * @param String key
+     */
+    public void touch(String key) {
+        Item item = cache.get(key);
+        if (item != null) {
+            item.checkedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 使某个缓存条目失效
+     * @param String key
+     */
+    public void invalidate(String key) {
+        generation.incrementAndGet();
+        if (cache.remove(key) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * 使某个路径自身、其父目录及所有子目录的缓存失效
+     * 用于创建、删除、上传等修改操作之后
+     * @param String path
+     */
+    public void invalidateTree(String path) {
+        String dir = path.endsWith("/") ? path : path + "/";
+        String parent = parentOf(dir);
+        generation.incrementAndGet();
+        for (String key : cache.snapshot().keySet()) {
+            // 排序方式中可能含有用户的通配符，路径中不会有分隔符，取第一个
+            String keyPath = key.substring(0, key.indexOf(KEY_SEPARATOR));
+            if (keyPath.equals(parent) || keyPath.startsWith(dir)) invalidate(key);
+        }
+    }
+
+    /**
+     * 清空缓存（例如切换认证用户时）
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        cache.evictAll();
+    }
+
+    /**
+     * 记录一次后台校验
+     */
+    public void onRevalidate() {
+        revalidations.incrementAndGet();
+    }
+
+    /**
+     * 缓存统计信息
+     * @return JSONObject
+     */
+    public JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("revalidations", revalidations.get());
+        stats.put("invalidations", invalidations.get());
+        stats.put("size", cache.size());
+        return stats;
+    }
+
+    /**
+     * 获取上级目录路径（以'/'结尾）
+     * @param String dir 以'/'结尾的目录路径
+     * @return String
+     */
+    private static String parentOf(String dir) {
+        int index = dir.lastIndexOf("/", dir.length() - 2);
+        return index > -1 ? dir.substring(0, index + 1) : dir;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 缓存条目
+    ///////////////////////////////////////////////////////
+
+    public static class Item {
+
+        public final Object result;
+        public final long lastModified;
+        private final long createdAt = System.currentTimeMillis();
+        private volatile long checkedAt = createdAt;
+        private final AtomicBoolean revalidating = new AtomicBoolean();
+
+        private Item(Object result, long lastModified) {
+            this.result = result;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * 是否已超过新鲜期
+         * @return boolean
+         */
+        public boolean isStale() {
+            return System.currentTimeMillis() - checkedAt > FRESH_MILLIS;
+        }
+
+        /**
+         * 抢占校验权，避免同一目录同时发起多次后台校验
+         * @return boolean
+         */
+        public boolean beginRevalidate() {
+            return revalidating.compareAndSet(false, true);
+        }
+
+        public void endRevalidate() {
+            revalidating.set(false);
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package net.cloudseat.smbova;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 目录列表条目
+ * 枚举目录时一次性读取的属性快照，之后不再访问服务器；排序时不再读写 JSON
+ */
+public class ListingEntry {
+
+    public final String name;
+    public final String ext;
+    public final int type;
+    // 类型组，文件夹为 0
+    public final int group;
+    public final String path;
+    public final long size;
+    public final long lastModified;
+
+    public ListingEntry(String name, String ext, int type, int group, String path, long size, long lastModified) {
+        this.name = name;
+        this.ext = ext;
+        this.type = type;
+        this.group = group;
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * 复制条目并替换类型组，用于内容识别的结果
+     * @param int group
+     * @return ListingEntry
+     */
+    public ListingEntry withGroup(int group) {
+        return new ListingEntry(name, ext, type, group, path, size, lastModified);
+    }
+
+    /**
+     * 转换为返回给 JS 的 JSON 对象
+     * @return JSONObject
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject entry = new JSONObject();
+        entry.put("name", name);
+        entry.put("ext", ext);
+        entry.put("type", type);
+        entry.put("group", group);
+        entry.put("path", path);
+        entry.put("size", size);
+        entry.put("lastModified", lastModified);
+        return entry;
+    }
+
+}
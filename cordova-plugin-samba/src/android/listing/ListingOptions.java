@@ -0,0 +1,54 @@
+package net.cloudseat.smbova;
+
+import org.json.JSONObject;
+
+/**
+ * listEntries 参数
+ * 由 JS 传入的 options 对象解析而来，缺省值与原有行为一致
+ */
+public class ListingOptions {
+
+    // 分页列表默认每页条目数
+    private static final int DEFAULT_PAGE_SIZE = 500;
+
+    public final boolean stream;
+    public final int pageSize;
+    public final String sortBy;
+    public final boolean descending;
+    public final boolean compact;
+    public final EntryFilter filter;
+    // 是否对类型组未知的文件识别内容
+    public final boolean sniff;
+    // 已编入索引的目录从本地索引列出
+    public final boolean index;
+
+    private ListingOptions(JSONObject options) {
+        this.stream = options.optBoolean("stream");
+        this.pageSize = Math.max(options.optInt("pageSize", DEFAULT_PAGE_SIZE), 1);
+        this.sortBy = options.optString("sortBy", ListingSorter.SORT_NAME);
+        this.descending = "desc".equals(options.optString("order"));
+        this.compact = "compact".equals(options.optString("format"));
+        this.filter = EntryFilter.parse(options.optJSONObject("filter"));
+        this.sniff = options.optBoolean("sniff");
+        this.index = options.optBoolean("index");
+    }
+
+    /**
+     * 解析参数，options 为空时使用缺省值
+     * @param JSONObject options
+     * @return ListingOptions
+     */
+    public static ListingOptions parse(JSONObject options) {
+        return new ListingOptions(options != null ? options : new JSONObject());
+    }
+
+    /**
+     * 影响返回结果的参数组合，用作缓存键的一部分
+     * @return String
+     */
+    public String variant() {
+        return sortBy + (descending ? ":desc" : ":asc") + (compact ? ":compact" : "") + (sniff ? ":sniff" : "")
+            + (filter != null ? ":" + filter : "");
+    }
+
+}
@@ -0,0 +1,124 @@
+package net.cloudseat.smbova;
+
+import java.text.CollationKey;
+import java.text.Collator;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 目录列表排序
+ * 每个条目只计算一次排序键，比较时不再调用 Collator.compare
+ */
+public class ListingSorter {
+
+    public static final String SORT_NAME = "name";
+    public static final String SORT_SIZE = "size";
+    public static final String SORT_MTIME = "mtime";
+    public static final String SORT_TYPE = "type";
+
+    // 数字按数值排序时补齐的位数，超出的长数字串保持原样
+    private static final int NUMBER_WIDTH = 20;
+
+    // 中文排序，所有列表共享同一规则，使用时复制以保证线程安全
+    private static final Collator COLLATOR = Collator.getInstance(Locale.CHINESE);
+
+    /**
+     * 排序目录列表，文件夹始终排在文件之前
+     * @param List<ListingEntry> entries
+     * @param String sortBy name/size/mtime/type，为空时按名称
+     * @param boolean descending
+     */
+    public static void sort(List<ListingEntry> entries, String sortBy, boolean descending) {
+        Collections.sort(entries, new EntryComparator(sortBy, descending, (Collator) COLLATOR.clone()));
+    }
+
+    /**
+     * 将名称中的连续数字补零到固定位数，使 "2" 排在 "10" 之前
+     * 名称中没有数字时直接返回原字符串
+     * @param String name
+     * @return String
+     */
+    static String naturalize(String name) {
+        int length = name.length();
+        int i = 0;
+        while (i < length && !isDigit(name.charAt(i))) i++;
+        if (i == length) return name;
+
+        StringBuilder sb = new StringBuilder(length + NUMBER_WIDTH);
+        sb.append(name, 0, i);
+        while (i < length) {
+            char c = name.charAt(i);
+            if (!isDigit(c)) {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            // 跳过前导零
+            int start = i;
+            while (start < length - 1 && name.charAt(start) == '0' && isDigit(name.charAt(start + 1))) start++;
+            int end = start;
+            while (end < length && isDigit(name.charAt(end))) end++;
+            for (int pad = NUMBER_WIDTH - (end - start); pad > 0; pad--) sb.append('0');
+            sb.append(name, start, end);
+            i = end;
+        }
+        return sb.toString();
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 多键比较器：类型分组 > 指定字段 > 名称
+     * 排序键在第一次需要比较名称时计算，每个条目只计算一次；按大小等排序时只有相等的条目需要
+     */
+    private static class EntryComparator implements Comparator<ListingEntry> {
+
+        private final String sortBy;
+        private final int order;
+        private final Collator collator;
+        private final Map<ListingEntry, CollationKey> keys = new IdentityHashMap<ListingEntry, CollationKey>();
+
+        public EntryComparator(String sortBy, boolean descending, Collator collator) {
+            this.sortBy = sortBy == null ? SORT_NAME : sortBy;
+            this.order = descending ? -1 : 1;
+            this.collator = collator;
+        }
+
+        @Override
+        public int compare(ListingEntry e1, ListingEntry e2) {
+            if (e1.type != e2.type) return e2.type - e1.type;
+
+            int result = 0;
+            switch (sortBy) {
+                case SORT_SIZE: result = Long.compare(e1.size, e2.size); break;
+                case SORT_MTIME: result = Long.compare(e1.lastModified, e2.lastModified); break;
+                case SORT_TYPE: result = e1.ext.compareTo(e2.ext); break;
+            }
+            if (result == 0) {
+                result = key(e1).compareTo(key(e2));
+            }
+            return order * result;
+        }
+
+        private CollationKey key(ListingEntry entry) {
+            CollationKey key = keys.get(entry);
+            if (key == null) {
+                key = collator.getCollationKey(naturalize(entry.name));
+                keys.put(entry, key);
+            }
+            return key;
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package net.cloudseat.smbova;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 目录列表统计
+ * 记录每次列出目录的条目数、耗时，以及列表代码自身发起的 jcifs 调用次数（目录属性查询和枚举）
+ * calls 不是网络上的 SMB 请求数：枚举内部分批的 FindNext2 和 jcifs 自行发起的查询都不计入
+ */
+public class ListingStats {
+
+    // 全局累计
+    private static final AtomicLong totalListings = new AtomicLong();
+    private static final AtomicLong totalCalls = new AtomicLong();
+    private static final AtomicLong totalEntries = new AtomicLong();
+    private static volatile ListingStats last;
+
+    private final String path;
+    private final long startTime = System.currentTimeMillis();
+    private int calls = 0;
+    private int entries = 0;
+    private long elapsed = 0;
+
+    public ListingStats(String path) {
+        this.path = path;
+    }
+
+    /**
+     * 记录一次列表代码发起的 jcifs 调用
+     */
+    public void call() {
+        calls++;
+    }
+
+    /**
+     * 记录一个已快照的条目
+     */
+    public void entry() {
+        entries++;
+    }
+
+    /**
+     * 列表结束，计入全局统计
+     */
+    public void finish() {
+        elapsed = System.currentTimeMillis() - startTime;
+        totalListings.incrementAndGet();
+        totalCalls.addAndGet(calls);
+        totalEntries.addAndGet(entries);
+        last = this;
+    }
+
+    /**
+     * 全局统计及最近一次列表的明细
+     * @return JSONObject
+     */
+    public static JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("listings", totalListings.get());
+        stats.put("calls", totalCalls.get());
+        stats.put("entries", totalEntries.get());
+
+        ListingStats item = last;
+        if (item != null) {
+            JSONObject detail = new JSONObject();
+            detail.put("path", item.path);
+            detail.put("calls", item.calls);
+            detail.put("entries", item.entries);
+            detail.put("elapsed", item.elapsed);
+            stats.put("last", detail);
+        }
+        return stats;
+    }
+
+}
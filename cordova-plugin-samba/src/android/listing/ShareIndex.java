@@ -0,0 +1,394 @@
+package net.cloudseat.smbova;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 目录树元数据索引
+ * 把远程目录树的路径、名称、大小、修改时间和类型组保存在本地 SQLite 中，
+ * 已索引的目录可以不访问服务器直接列出和搜索（服务器休眠时也可以）
+ * 刷新时只列出修改时间变化的目录和含有子目录的目录（为取得子目录的修改时间），
+ * 修改时间未变的末级目录直接跳过；目录修改时间不反映子文件内容的变化，full 时全部重新列出
+ * 隐藏文件和系统文件不编入索引
+ */
+public class ShareIndex extends SQLiteOpenHelper {
+
+    private static final String NAME = "share-index.db";
+    private static final int VERSION = 2;
+
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final int MAX_CONCURRENCY = 16;
+
+    private static final String COLUMNS = "name, ext, type, grp, path, size, mtime";
+
+    /**
+     * @param Context context
+     */
+    public ShareIndex(Context context) {
+        super(context, NAME, null, VERSION);
+        // 刷新期间仍可从索引列出和搜索
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE folders (path TEXT PRIMARY KEY, mtime INTEGER NOT NULL, indexed INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE entries (path TEXT PRIMARY KEY, parent TEXT NOT NULL, name TEXT NOT NULL,"
+            + " folded TEXT NOT NULL, ext TEXT NOT NULL, type INTEGER NOT NULL, grp INTEGER NOT NULL, size INTEGER NOT NULL, mtime INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX entries_parent ON entries (parent)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // 索引可以随时重建
+        db.execSQL("DROP TABLE IF EXISTS folders");
+        db.execSQL("DROP TABLE IF EXISTS entries");
+        onCreate(db);
+    }
+
+    /**
+     * 索引或增量刷新目录树
+     * @param String root 以 / 结尾的规范路径
+     * @param boolean full 忽略修改时间，重新列出所有目录
+     * @param int concurrency 同时列出的目录数
+     * @return JSONObject {folders, listed, skipped, entries, removed, errors, elapsed}
+     */
+    public JSONObject refresh(String root, boolean full, int concurrency) throws JSONException, InterruptedException {
+        Crawl crawl = new Crawl(getWritableDatabase(), full, Math.min(Math.max(concurrency, 1), MAX_CONCURRENCY));
+        return crawl.run(root);
+    }
+
+    /**
+     * 从索引中列出目录
+     * @param String dir 以 / 结尾的规范路径
+     * @param EntryFilter filter 可为空，hidden 条件不使用
+     * @return List<ListingEntry> 目录未编入索引时返回 null
+     */
+    public List<ListingEntry> list(String dir, EntryFilter filter) {
+        SQLiteDatabase db = getReadableDatabase();
+        if (folderModified(db, dir) == null) {
+            return null;
+        }
+        List<String> args = new ArrayList<String>();
+        args.add(dir);
+        StringBuilder sql = new StringBuilder("SELECT " + COLUMNS + " FROM entries WHERE parent = ?");
+        if (filter != null && filter.pattern != null) {
+            sql.append(" AND folded LIKE ? ESCAPE '\\'");
+            args.add(like(filter.pattern, false));
+        }
+        appendFilter(sql, args, filter);
+        return query(db, sql.toString(), args, -1);
+    }
+
+    /**
+     * 从索引中搜索名称匹配的条目，规则与 ShareSearch 相同
+     * @param String root 以 / 结尾的规范路径
+     * @param String name 名称条件
+     * @param EntryFilter filter 可为空
+     * @param boolean directories 是否包含名称匹配的目录
+     * @param int maxDepth 负数表示不限
+     * @param int maxResults
+     * @return List<ListingEntry> 超过上限时多返回一条；根目录未编入索引时返回 null
+     */
+    public List<ListingEntry> search(String root, String name, EntryFilter filter, boolean directories,
+        int maxDepth, int maxResults) {
+
+        SQLiteDatabase db = getReadableDatabase();
+        if (folderModified(db, root) == null) {
+            return null;
+        }
+        List<String> args = new ArrayList<String>();
+        StringBuilder sql = new StringBuilder("SELECT " + COLUMNS + " FROM entries WHERE ");
+        appendPrefix(sql, args, "path", root);
+        if (name != null && !name.isEmpty() && !name.equals("*")) {
+            sql.append(" AND folded LIKE ? ESCAPE '\\'");
+            args.add(like(name, true));
+        }
+        if (!directories || (filter != null && filter.group != 0)) {
+            sql.append(" AND type = 0");
+        }
+        appendFilter(sql, args, filter);
+
+        if (maxDepth < 0) {
+            return query(db, sql.toString(), args, maxResults + 1);
+        }
+        List<ListingEntry> list = query(db, sql.toString(), args, -1);
+        List<ListingEntry> result = new ArrayList<ListingEntry>();
+        for (ListingEntry entry : list) {
+            if (depth(root, entry) <= maxDepth) {
+                result.add(entry);
+                if (result.size() > maxResults) break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 删除目录树的索引
+     * @param String root 以 / 结尾的规范路径
+     */
+    public void remove(String root) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            deleteTree(db, root);
+            db.delete("folders", "path = ?", new String[] { root });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    // 上次索引时的目录修改时间，未编入索引时返回 null
+    private static Long folderModified(SQLiteDatabase db, String dir) {
+        Cursor cursor = db.rawQuery("SELECT mtime FROM folders WHERE path = ?", new String[] { dir });
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Set<String> childFolders(SQLiteDatabase db, String dir) {
+        Set<String> folders = new HashSet<String>();
+        Cursor cursor = db.rawQuery("SELECT path FROM entries WHERE parent = ? AND type != 0", new String[] { dir });
+        try {
+            while (cursor.moveToNext()) {
+                folders.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return folders;
+    }
+
+    // 删除目录下所有层级的条目和目录记录，不含目录本身
+    private static void deleteTree(SQLiteDatabase db, String dir) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder where = new StringBuilder();
+        appendPrefix(where, args, "path", dir);
+        db.delete("entries", where.toString(), args.toArray(new String[0]));
+        db.delete("folders", where.toString(), args.toArray(new String[0]));
+    }
+
+    // 以 dir 开头的路径，用主键上的范围查询代替 LIKE；dir 以 / 结尾，上界为把 / 换成 0
+    private static void appendPrefix(StringBuilder sql, List<String> args, String column, String dir) {
+        sql.append(column).append(" > ? AND ").append(column).append(" < ?");
+        args.add(dir);
+        args.add(dir.substring(0, dir.length() - 1) + (char) ('/' + 1));
+    }
+
+    private static void appendFilter(StringBuilder sql, List<String> args, EntryFilter filter) {
+        if (filter == null) return;
+        if (filter.group != 0) {
+            sql.append(" AND (type != 0 OR grp = ?)");
+            args.add(String.valueOf(filter.group));
+        }
+        if (filter.minSize > 0 || filter.maxSize < Long.MAX_VALUE) {
+            sql.append(" AND (type != 0 OR size BETWEEN ? AND ?)");
+            args.add(String.valueOf(filter.minSize));
+            args.add(String.valueOf(filter.maxSize));
+        }
+    }
+
+    private static List<ListingEntry> query(SQLiteDatabase db, String sql, List<String> args, int limit) {
+        if (limit > 0) sql += " LIMIT " + limit;
+        List<ListingEntry> list = new ArrayList<ListingEntry>();
+        Cursor cursor = db.rawQuery(sql, args.toArray(new String[0]));
+        try {
+            while (cursor.moveToNext()) {
+                list.add(new ListingEntry(cursor.getString(0), cursor.getString(1), cursor.getInt(2),
+                    cursor.getInt(3), cursor.getString(4), cursor.getLong(5), cursor.getLong(6)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return list;
+    }
+
+    // 通配符转换为 LIKE 模式；不含通配符时 contains 为 true 则按包含匹配，否则按整个名称匹配
+    // SQLite 的 LIKE 只忽略 ASCII 字母的大小写，所以与 folded 列一样先逐字符折叠
+    private static String like(String name, boolean contains) {
+        name = fold(name);
+        boolean wildcard = name.indexOf('*') >= 0 || name.indexOf('?') >= 0;
+        StringBuilder like = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '*') {
+                like.append('%');
+            } else if (c == '?') {
+                like.append('_');
+            } else {
+                if (c == '%' || c == '_' || c == '\\') like.append('\\');
+                like.append(c);
+            }
+        }
+        return contains && !wildcard ? "%" + like + "%" : like.toString();
+    }
+
+    // 按 Pattern.CASE_INSENSITIVE | UNICODE_CASE 的规则逐字符折叠大小写，长度不变，_ 仍对应一个字符
+    private static String fold(String name) {
+        StringBuilder folded = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            folded.append(Character.toLowerCase(Character.toUpperCase(name.charAt(i))));
+        }
+        return folded.toString();
+    }
+
+    // 条目所在目录相对于根目录的层数，根目录下的条目为 0
+    private static int depth(String root, ListingEntry entry) {
+        int depth = 0;
+        int end = entry.path.endsWith("/") ? entry.path.length() - 1 : entry.path.length();
+        for (int i = root.length(); i < end; i++) {
+            if (entry.path.charAt(i) == '/') depth++;
+        }
+        return depth;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 一次刷新
+     * 列出一个目录后立即在一个事务中替换它的条目，再把需要列出的子目录交给工作线程
+     */
+    private static class Crawl {
+
+        private final SQLiteDatabase db;
+        private final boolean full;
+        private final WorkerGroup group;
+
+        private final AtomicInteger folders = new AtomicInteger();
+        private final AtomicInteger listed = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger entries = new AtomicInteger();
+        private final AtomicInteger removed = new AtomicInteger();
+        private final AtomicInteger errors = new AtomicInteger();
+
+        public Crawl(SQLiteDatabase db, boolean full, int concurrency) {
+            this.db = db;
+            this.full = full;
+            this.group = new WorkerGroup(concurrency);
+        }
+
+        public JSONObject run(String root) throws JSONException, InterruptedException {
+            long startTime = System.currentTimeMillis();
+            // 根目录的修改时间不在列表中，总是列出
+            submit(root, 0, true);
+            try {
+                group.await();
+            } catch (InterruptedException e) {
+                // 取消时不再列出排队的目录，已写入的目录保留
+                group.cancel();
+                throw e;
+            }
+
+            JSONObject result = new JSONObject();
+            result.put("folders", folders.get());
+            result.put("listed", listed.get());
+            result.put("skipped", skipped.get());
+            result.put("entries", entries.get());
+            result.put("removed", removed.get());
+            result.put("errors", errors.get());
+            result.put("elapsed", System.currentTimeMillis() - startTime);
+            return result;
+        }
+
+        private void submit(final String dir, final long mtime, final boolean force) {
+            group.execute(new Runnable() {
+                @Override
+                public void run() {
+                    visit(dir, mtime, force);
+                }
+            });
+        }
+
+        private void visit(String dir, long mtime, boolean force) {
+            folders.incrementAndGet();
+            Long indexed = folderModified(db, dir);
+            if (!force && !full && indexed != null && mtime != 0 && indexed == mtime
+                && childFolders(db, dir).isEmpty()) {
+                skipped.incrementAndGet();
+                return;
+            }
+
+            List<ListingEntry> list;
+            try {
+                list = new SambaFile(dir).listChildren(EntryFilter.VISIBLE);
+                listed.incrementAndGet();
+            } catch (Exception e) {
+                // 保留原有的索引
+                errors.incrementAndGet();
+                return;
+            }
+            write(dir, mtime, list);
+
+            for (ListingEntry entry : list) {
+                if (entry.type != 0) {
+                    submit(entry.path, entry.lastModified, false);
+                }
+            }
+        }
+
+        // 替换目录的条目，删除已不存在的子目录的整个索引
+        private void write(String dir, long mtime, List<ListingEntry> list) {
+            db.beginTransaction();
+            try {
+                Set<String> gone = childFolders(db, dir);
+                for (ListingEntry entry : list) {
+                    gone.remove(entry.path);
+                }
+                for (String folder : gone) {
+                    deleteTree(db, folder);
+                    db.delete("folders", "path = ?", new String[] { folder });
+                    removed.incrementAndGet();
+                }
+                db.delete("entries", "parent = ?", new String[] { dir });
+
+                SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO entries"
+                    + " (path, parent, name, folded, ext, type, grp, size, mtime) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                try {
+                    for (ListingEntry entry : list) {
+                        insert.bindString(1, entry.path);
+                        insert.bindString(2, dir);
+                        insert.bindString(3, entry.name);
+                        insert.bindString(4, fold(entry.name));
+                        insert.bindString(5, entry.ext);
+                        insert.bindLong(6, entry.type);
+                        insert.bindLong(7, entry.group);
+                        insert.bindLong(8, entry.size);
+                        insert.bindLong(9, entry.lastModified);
+                        insert.executeInsert();
+                    }
+                } finally {
+                    insert.close();
+                }
+                entries.addAndGet(list.size());
+
+                db.execSQL("INSERT OR REPLACE INTO folders (path, mtime, indexed) VALUES (?, ?, ?)",
+                    new Object[] { dir, mtime, System.currentTimeMillis() });
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+}
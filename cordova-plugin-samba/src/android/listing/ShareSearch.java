@@ -0,0 +1,216 @@
+package net.cloudseat.smbova;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 递归搜索
+ * 最多 concurrency 个目录同时列出（使用共用的工作线程），列出一个目录后把子目录交给工作线程继续，
+ * 名称匹配的条目攒成一批（满 batchSize 条或超过 BATCH_INTERVAL）回调一次，每列完一个目录也检查一次间隔，
+ * 之后没有新的匹配时已找到的结果也不会一直攒着；
+ * 达到结果上限或被取消时不再列出新的目录，正在进行的列表结束后丢弃
+ * 名称不含通配符时按包含匹配，含 * 或 ? 时按整个名称匹配，均不区分大小写
+ */
+public class ShareSearch {
+
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final int MAX_CONCURRENCY = 16;
+    public static final int DEFAULT_MAX_RESULTS = 1000;
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    // 结果较少时最长的等待时间
+    private static final long BATCH_INTERVAL = 300;
+
+    /**
+     * 一批匹配结果
+     */
+    public interface OnBatchListener {
+        public void onBatch(List<ListingEntry> entries);
+    }
+
+    private final String root;
+    private final Pattern pattern;
+    private final EntryFilter filter;
+    private final boolean directories;
+    private final int maxDepth;
+    private final int maxResults;
+    private final int batchSize;
+    private final OnBatchListener listener;
+
+    private final WorkerGroup group;
+    private final AtomicInteger listed = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private volatile boolean cancelled = false;
+    private volatile boolean stopped = false;
+
+    private List<ListingEntry> batch = new ArrayList<ListingEntry>();
+    private long lastFlush = System.currentTimeMillis();
+    private int matches = 0;
+
+    /**
+     * @param String root 以 / 结尾的起始目录
+     * @param String name 名称条件
+     * @param EntryFilter filter 类型组、大小、隐藏文件条件，可为空
+     * @param boolean directories 是否包含名称匹配的目录，指定类型组时只返回文件
+     * @param int maxDepth 最大深度，0 表示只搜索起始目录，负数表示不限
+     * @param int concurrency 同时列出的目录数
+     * @param int maxResults 结果上限
+     * @param int batchSize
+     * @param OnBatchListener listener
+     */
+    public ShareSearch(String root, String name, EntryFilter filter, boolean directories, int maxDepth,
+        int concurrency, int maxResults, int batchSize, OnBatchListener listener) {
+        this.root = root;
+        this.pattern = compile(name);
+        this.filter = filter;
+        this.directories = directories && (filter == null || filter.group == 0);
+        this.maxDepth = maxDepth;
+        this.group = new WorkerGroup(Math.min(Math.max(concurrency, 1), MAX_CONCURRENCY));
+        this.maxResults = Math.max(maxResults, 1);
+        this.batchSize = Math.max(batchSize, 1);
+        this.listener = listener;
+    }
+
+    /**
+     * 执行搜索，结束、达到上限或被取消后返回
+     * @return JSONObject {total, directories, errors, truncated, cancelled, elapsed}
+     */
+    public JSONObject run() throws JSONException {
+        long startTime = System.currentTimeMillis();
+        submit(root, 0);
+        try {
+            group.await();
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+        } finally {
+            stopped = true;
+            // 中断正在进行的列表：jcifs 等待响应时收到中断即抛出异常，不断开共用的连接
+            group.cancel();
+        }
+
+        synchronized (this) {
+            flush();
+            JSONObject result = new JSONObject();
+            result.put("total", matches);
+            result.put("directories", listed.get());
+            result.put("errors", errors.get());
+            result.put("truncated", matches >= maxResults);
+            result.put("cancelled", cancelled);
+            result.put("elapsed", System.currentTimeMillis() - startTime);
+            return result;
+        }
+    }
+
+    /**
+     * 取消搜索，已找到的结果仍会发送
+     */
+    public void cancel() {
+        cancelled = true;
+        stop();
+    }
+
+    /**
+     * 是否已取消，run 之前也可以取消
+     * @return boolean
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private void submit(final String path, final int depth) {
+        group.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!stopped) list(path, depth);
+            }
+        });
+    }
+
+    private void list(String path, int depth) {
+        List<ListingEntry> entries;
+        try {
+            entries = new SambaFile(path).listChildren(filter);
+            listed.incrementAndGet();
+        } catch (Exception e) {
+            // 无权限等无法列出的目录跳过，停止后被中断的列表不计入
+            if (!stopped) errors.incrementAndGet();
+            return;
+        }
+        for (ListingEntry entry : entries) {
+            if (stopped) return;
+            boolean directory = entry.type != 0;
+            if (pattern.matcher(entry.name).find() && (!directory || directories)) {
+                found(entry);
+            }
+            if (directory && (maxDepth < 0 || depth < maxDepth)) {
+                submit(entry.path, depth + 1);
+            }
+        }
+        flushIfDue();
+    }
+
+    private synchronized void found(ListingEntry entry) {
+        if (stopped) return;
+        batch.add(entry);
+        matches++;
+        if (matches >= maxResults) {
+            flush();
+            stop();
+        } else if (batch.size() >= batchSize || System.currentTimeMillis() - lastFlush >= BATCH_INTERVAL) {
+            flush();
+        }
+    }
+
+    // 距上次发送超过 BATCH_INTERVAL 时发送未满的一批
+    private synchronized void flushIfDue() {
+        if (!stopped && System.currentTimeMillis() - lastFlush >= BATCH_INTERVAL) {
+            flush();
+        }
+    }
+
+    private synchronized void flush() {
+        if (!batch.isEmpty()) {
+            listener.onBatch(batch);
+            batch = new ArrayList<ListingEntry>();
+        }
+        lastFlush = System.currentTimeMillis();
+    }
+
+    // 不再列出新的目录，中断正在进行的列表
+    private void stop() {
+        stopped = true;
+        group.cancel();
+    }
+
+    // 通配符转换为正则，不含通配符时按包含匹配
+    private static Pattern compile(String name) {
+        if (name == null || name.isEmpty() || name.equals("*")) {
+            return Pattern.compile("");
+        }
+        if (name.indexOf('*') < 0 && name.indexOf('?') < 0) {
+            return Pattern.compile(Pattern.quote(name), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        }
+        StringBuilder regex = new StringBuilder("^");
+        int start = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) regex.append(Pattern.quote(name.substring(start, i)));
+                regex.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < name.length()) regex.append(Pattern.quote(name.substring(start)));
+        return Pattern.compile(regex.append("$").toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+}
@@ -0,0 +1,533 @@
+package net.cloudseat.smbova;
+
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 双向目录同步
+ * 分别扫描本地和远程目录（远程按层并发列目录，列目录结果已带大小和修改时间，无需逐个查询），
+ * 与同步清单比较得出两端自上次同步以来的变化，只传输变化的文件，删除也会同步到另一端
+ * 两端都修改了同一文件时按冲突策略处理；传输失败的文件保留原清单记录，下次同步重试
+ * 首次同步时两端都有的同名文件，开启摘要时内容相同、否则大小和修改时间相同才视为相同，不同时按冲突处理；
+ * 只同步文件，空目录不会同步；远程的隐藏文件和系统文件（Samba 默认隐藏以 . 开头的文件）及隐藏目录下的路径
+ * 两端都不处理，不传输也不删除
+ */
+public class FolderSync {
+
+    // 冲突策略：修改时间较新者为准、本地为准、远程为准、两者都保留、跳过
+    public static final String POLICY_NEWER = "newer";
+    public static final String POLICY_LOCAL = "local";
+    public static final String POLICY_REMOTE = "remote";
+    public static final String POLICY_KEEP_BOTH = "keepBoth";
+    public static final String POLICY_SKIP = "skip";
+
+    // 并发列远程目录的线程数
+    private static final int SCAN_THREADS = 4;
+    // 比较两端修改时间的误差，FAT 存储卡的精度为 2 秒
+    private static final long MODIFIED_TOLERANCE = 2000;
+
+    private static final int UPLOAD = 1;
+    private static final int DOWNLOAD = 2;
+    private static final int DELETE_LOCAL = 3;
+    private static final int DELETE_REMOTE = 4;
+    // 两端内容一致，只更新清单
+    private static final int ADOPT = 5;
+    // 冲突时保留两者：本地文件改名，执行时才改名
+    private static final int RENAME = 6;
+
+    private final SyncManifest manifest;
+    private final String localRoot;
+    private final String remoteRoot;
+    private final String policy;
+    private final boolean hash;
+    private final boolean deletes;
+    private final int workers;
+    private final File journalDir;
+    private final TreeTransfer.OnFileListener fileListener;
+    private final SambaFile.OnProgressListener listener;
+
+    private Map<String, Stat> localFiles;
+    private Map<String, Stat> remoteFiles;
+    // 远程被隐藏的文件和目录（目录以 / 结尾）
+    private final Set<String> remoteHidden = new HashSet<String>();
+    private final List<JSONObject> conflicts = new ArrayList<JSONObject>();
+    private final List<JSONObject> failures = new ArrayList<JSONObject>();
+    private final int[] counts = new int[6];
+    private long total = 0;
+    private long loaded = 0;
+
+    /**
+     * @param SyncManifest manifest 本地目录和远程目录（以 / 结尾）取自清单
+     * @param String policy 冲突策略
+     * @param boolean hash 是否记录本地文件摘要，修改时间变化但内容未变时不再上传
+     * @param boolean deletes 是否同步删除
+     * @param int workers 并发传输的文件数
+     * @param File journalDir 上传续传日志目录
+     * @param OnFileListener fileListener
+     * @param OnProgressListener listener 所有传输的总进度
+     */
+    public FolderSync(SyncManifest manifest, String policy, boolean hash, boolean deletes, int workers,
+        File journalDir, TreeTransfer.OnFileListener fileListener, SambaFile.OnProgressListener listener) {
+        this.manifest = manifest;
+        this.localRoot = manifest.getLocal();
+        this.remoteRoot = manifest.getRemote();
+        this.policy = policy;
+        this.hash = hash;
+        this.deletes = deletes;
+        this.workers = Math.min(Math.max(workers, 1), TreeTransfer.MAX_WORKERS);
+        this.journalDir = journalDir;
+        this.fileListener = fileListener;
+        this.listener = listener;
+    }
+
+    /**
+     * 执行同步
+     * @return JSONObject {uploaded, downloaded, deletedLocal, deletedRemote, unchanged,
+     *                     conflicts: [{path, resolution}], failed: [{path, error}]}
+     */
+    public JSONObject run() throws IOException, JSONException {
+        File local = new File(localRoot);
+        if (!local.isDirectory() && !local.mkdirs()) {
+            throw new IOException("Cannot create directory: " + local);
+        }
+        SambaFile remote = new SambaFile(remoteRoot);
+        if (!remote.exists()) {
+            remote.mkdirs();
+        }
+
+        localFiles = new HashMap<String, Stat>();
+        scanLocal(local, "");
+        remoteFiles = scanRemote();
+
+        List<Action> actions = plan();
+        execute(actions);
+        manifest.save();
+        return result();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private void scanLocal(File dir, String relative) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            throw new IOException("Cannot list directory: " + dir);
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                scanLocal(child, relative + child.getName() + "/");
+            } else if (!isTemporary(child.getName())) {
+                localFiles.put(relative + child.getName(), new Stat(child.length(), child.lastModified()));
+            }
+        }
+    }
+
+    // 按层遍历，同一层的目录并发列出
+    private Map<String, Stat> scanRemote() throws IOException {
+        final Map<String, Stat> files = new HashMap<String, Stat>();
+        List<String> level = new ArrayList<String>();
+        level.add("");
+
+        WorkerGroup group = new WorkerGroup(SCAN_THREADS);
+        try {
+            while (!level.isEmpty()) {
+                List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+                for (final String relative : level) {
+                    futures.add(group.submit(new Callable<List<String>>() {
+                        @Override
+                        public List<String> call() throws IOException {
+                            List<String> dirs = new ArrayList<String>();
+                            SambaFile dir = new SambaFile(remoteRoot + relative);
+                            for (ListingEntry child : dir.listChildren(hiddenFilter(relative))) {
+                                if (child.type != 0) {
+                                    dirs.add(relative + child.name + "/");
+                                } else if (!isTemporary(child.name)) {
+                                    Stat stat = new Stat(child.size, child.lastModified);
+                                    synchronized (files) {
+                                        files.put(relative + child.name, stat);
+                                    }
+                                }
+                            }
+                            return dirs;
+                        }
+                    }));
+                }
+                group.await();
+                level = new ArrayList<String>();
+                for (Future<List<String>> future : futures) {
+                    level.addAll(future.get());
+                }
+            }
+        } catch (InterruptedException e) {
+            group.cancel();
+            Thread.currentThread().interrupt();
+            throw new IOException("Scan interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        return files;
+    }
+
+    // 与 EntryFilter.VISIBLE 相同，另外记下被排除的路径，plan 时两端都跳过
+    private EntryFilter hiddenFilter(final String relative) {
+        return new EntryFilter(null, 0, true, 0, Long.MAX_VALUE) {
+            @Override
+            public boolean accept(ListingEntry entry, SmbFile file) throws SmbException {
+                if ((file.getAttributes() & (SmbFile.ATTR_HIDDEN | SmbFile.ATTR_SYSTEM)) == 0) {
+                    return true;
+                }
+                synchronized (remoteHidden) {
+                    remoteHidden.add(relative + entry.name + (entry.type != 0 ? "/" : ""));
+                }
+                return false;
+            }
+        };
+    }
+
+    // 路径本身或所在的某一级目录在远程被隐藏
+    private boolean isHiddenRemotely(String path) {
+        if (remoteHidden.contains(path)) return true;
+        for (int i = path.indexOf('/'); i > -1; i = path.indexOf('/', i + 1)) {
+            if (remoteHidden.contains(path.substring(0, i + 1))) return true;
+        }
+        return false;
+    }
+
+    // 未完成传输的临时文件不参与同步
+    private static boolean isTemporary(String name) {
+        return name.endsWith(ParallelDownload.PART_SUFFIX)
+            || name.endsWith(ParallelDownload.PART_SUFFIX + DownloadJournal.SUFFIX);
+    }
+
+    /**
+     * 比较两端当前状态与清单，得出要执行的操作
+     */
+    List<Action> plan() throws IOException {
+        Set<String> paths = new TreeSet<String>(manifest.paths());
+        paths.addAll(localFiles.keySet());
+        paths.addAll(remoteFiles.keySet());
+
+        List<Action> actions = new ArrayList<Action>();
+        for (String path : paths) {
+            if (isHiddenRemotely(path)) {
+                // 远程列不出不代表已删除，保留清单记录，否则本地文件会被误删
+                counts[0]++;
+                continue;
+            }
+            SyncManifest.Entry entry = manifest.get(path);
+            Stat local = localFiles.get(path);
+            Stat remote = remoteFiles.get(path);
+
+            if (entry == null) {
+                // 上次同步后新出现的文件
+                if (local != null && remote != null) {
+                    if (same(path, local, remote)) {
+                        actions.add(new Action(ADOPT, path, 0));
+                    } else {
+                        conflict(actions, path, local, remote);
+                    }
+                } else if (local != null) {
+                    actions.add(new Action(UPLOAD, path, local.size));
+                } else {
+                    actions.add(new Action(DOWNLOAD, path, remote.size));
+                }
+                continue;
+            }
+
+            boolean localChanged = local != null && localChanged(path, local, entry);
+            boolean remoteChanged = remote != null && (remote.size != entry.size || remote.modified != entry.remoteModified);
+
+            if (local == null && remote == null) {
+                manifest.remove(path);
+            } else if (local == null) {
+                // 本地已删除：远程未变时删除远程，远程有修改时以修改为准
+                if (remoteChanged || !deletes) {
+                    actions.add(new Action(DOWNLOAD, path, remote.size));
+                } else {
+                    actions.add(new Action(DELETE_REMOTE, path, 0));
+                }
+            } else if (remote == null) {
+                if (localChanged || !deletes) {
+                    actions.add(new Action(UPLOAD, path, local.size));
+                } else {
+                    actions.add(new Action(DELETE_LOCAL, path, 0));
+                }
+            } else if (localChanged && remoteChanged) {
+                conflict(actions, path, local, remote);
+            } else if (localChanged) {
+                actions.add(new Action(UPLOAD, path, local.size));
+            } else if (remoteChanged) {
+                actions.add(new Action(DOWNLOAD, path, remote.size));
+            } else if (local.modified != entry.localModified) {
+                // 只有修改时间变化，摘要一致
+                actions.add(new Action(ADOPT, path, 0));
+            } else {
+                counts[0]++;
+            }
+        }
+        return actions;
+    }
+
+    // 修改时间变化但摘要一致时视为未修改
+    private boolean localChanged(String path, Stat local, SyncManifest.Entry entry) throws IOException {
+        if (local.size != entry.size) return true;
+        if (local.modified == entry.localModified) return false;
+        return !hash || entry.hash == null || !entry.hash.equals(SyncManifest.hash(new File(localRoot, path)));
+    }
+
+    // 两端都有而清单中没有的文件是否相同：开启摘要时比较内容，否则比较修改时间
+    private boolean same(String path, Stat local, Stat remote) throws IOException {
+        if (local.size != remote.size) return false;
+        if (!hash) return Math.abs(local.modified - remote.modified) <= MODIFIED_TOLERANCE;
+        InputStream in = new SambaFile(remoteRoot + path).getInputStream();
+        try {
+            return SyncManifest.hash(new File(localRoot, path)).equals(Digests.md5Hex(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    private void conflict(List<Action> actions, String path, Stat local, Stat remote) throws IOException {
+        String resolution = policy;
+        if (POLICY_NEWER.equals(policy)) {
+            resolution = local.modified >= remote.modified ? POLICY_LOCAL : POLICY_REMOTE;
+        }
+        if (POLICY_LOCAL.equals(resolution)) {
+            actions.add(new Action(UPLOAD, path, local.size));
+        } else if (POLICY_REMOTE.equals(resolution)) {
+            actions.add(new Action(DOWNLOAD, path, remote.size));
+        } else if (POLICY_KEEP_BOTH.equals(resolution)) {
+            // 执行时本地文件改名后上传，再下载远程文件到原路径
+            actions.add(new Action(RENAME, path, conflictName(path), local.size, remote.size));
+        }
+
+        try {
+            JSONObject conflict = new JSONObject();
+            conflict.put("path", path);
+            conflict.put("resolution", resolution);
+            conflicts.add(conflict);
+        } catch (JSONException e) {
+            // 记录失败不影响同步
+        }
+    }
+
+    // a/b.jpg -> a/b (conflict 1570000000000).jpg
+    private static String conflictName(String path) {
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        String suffix = " (conflict " + System.currentTimeMillis() + ")";
+        return dot > slash + 1 ? path.substring(0, dot) + suffix + path.substring(dot) : path + suffix;
+    }
+
+    // 先在当前线程执行改名、删除和清单更新，再并发传输，大文件先传
+    private void execute(List<Action> actions) {
+        List<Action> transfers = new ArrayList<Action>();
+        for (Action action : actions) {
+            if (action.type == UPLOAD || action.type == DOWNLOAD) {
+                transfers.add(action);
+                total += action.size;
+            } else if (action.type == RENAME) {
+                // 改名失败时两端都不动
+                if (new File(localRoot, action.path).renameTo(new File(localRoot, action.target))) {
+                    transfers.add(new Action(UPLOAD, action.target, action.size));
+                    transfers.add(new Action(DOWNLOAD, action.path, action.remoteSize));
+                    total += action.size + action.remoteSize;
+                } else {
+                    failed(action.path, "Cannot rename conflicting file");
+                }
+            } else {
+                perform(action);
+            }
+        }
+        Collections.sort(transfers, new Comparator<Action>() {
+            @Override
+            public int compare(Action a, Action b) {
+                return Long.compare(b.size, a.size);
+            }
+        });
+        listener.onProgress(0, total);
+
+        WorkerGroup group = new WorkerGroup(workers);
+        for (final Action action : transfers) {
+            group.execute(new Runnable() {
+                @Override
+                public void run() {
+                    perform(action);
+                }
+            });
+        }
+        try {
+            group.await();
+        } catch (InterruptedException e) {
+            group.cancel();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void perform(Action action) {
+        String path = action.path;
+        File local = new File(localRoot, path);
+        String remotePath = remoteRoot + path;
+        SambaFile.OnProgressListener progress = null;
+        if (action.type == UPLOAD || action.type == DOWNLOAD) {
+            progress = progress(fileListener.onStart(path, action.size));
+        }
+
+        String error = null;
+        try {
+            switch (action.type) {
+                case UPLOAD: {
+                    String parent = remotePath.substring(0, remotePath.lastIndexOf('/') + 1);
+                    SambaFile dir = new SambaFile(parent);
+                    if (!dir.exists()) dir.mkdirs();
+                    SambaFile remote = new SambaFile(remotePath);
+                    remote.upload(local.getPath(), journalDir, progress);
+                    record(path, local, new SambaFile(remotePath).lastModified());
+                    break;
+                }
+                case DOWNLOAD: {
+                    local.getParentFile().mkdirs();
+                    new SambaFile(remotePath).download(local.getPath(), 1, progress);
+                    record(path, local, remoteFiles.get(path).modified);
+                    break;
+                }
+                case DELETE_LOCAL:
+                    // 删除前再确认远程文件确实不存在
+                    if (new SambaFile(remotePath).exists()) {
+                        throw new IOException("Not deleted, remote file still exists: " + remotePath);
+                    }
+                    if (!local.delete()) throw new IOException("Cannot delete " + local);
+                    manifest.remove(path);
+                    break;
+                case DELETE_REMOTE:
+                    new SambaFile(remotePath).delete();
+                    manifest.remove(path);
+                    break;
+                case ADOPT:
+                    record(path, local, remoteFiles.get(path).modified);
+                    break;
+            }
+            synchronized (this) {
+                counts[action.type]++;
+            }
+        } catch (Exception e) {
+            error = e.getMessage() != null ? e.getMessage() : e.toString();
+            failed(path, error);
+        }
+        if (progress != null) {
+            fileListener.onFinish(path, action.size, error);
+        }
+    }
+
+    private synchronized void failed(String path, String error) {
+        try {
+            JSONObject failure = new JSONObject();
+            failure.put("path", path);
+            failure.put("error", error);
+            failures.add(failure);
+        } catch (JSONException e) {
+            // 记录失败不影响同步
+        }
+    }
+
+    // 传输成功后记录两端的新状态
+    private void record(String path, File local, long remoteModified) throws IOException {
+        String digest = hash ? SyncManifest.hash(local) : null;
+        manifest.put(path, new SyncManifest.Entry(local.length(), local.lastModified(), remoteModified, digest));
+    }
+
+    // 单个文件的进度同时累加到总进度
+    private SambaFile.OnProgressListener progress(final SambaFile.OnProgressListener fileProgress) {
+        return new SambaFile.OnProgressListener() {
+            private long last = 0;
+
+            @Override
+            public void onProgress(long current, long size) {
+                fileProgress.onProgress(current, size);
+                added(current - last);
+                last = current;
+            }
+        };
+    }
+
+    private synchronized void added(long bytes) {
+        loaded += bytes;
+        listener.onProgress(loaded, total);
+    }
+
+    private synchronized JSONObject result() throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("uploaded", counts[UPLOAD]);
+        result.put("downloaded", counts[DOWNLOAD]);
+        result.put("deletedLocal", counts[DELETE_LOCAL]);
+        result.put("deletedRemote", counts[DELETE_REMOTE]);
+        result.put("unchanged", counts[0] + counts[ADOPT]);
+        result.put("conflicts", new JSONArray(conflicts));
+        result.put("failed", new JSONArray(failures));
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 文件的大小和修改时间
+     */
+    static class Stat {
+        final long size;
+        final long modified;
+
+        public Stat(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * 同步操作
+     */
+    static class Action {
+        final int type;
+        final String path;
+        final long size;
+        // 改名时的新路径和远程文件大小
+        final String target;
+        final long remoteSize;
+
+        public Action(int type, String path, long size) {
+            this(type, path, null, size, 0);
+        }
+
+        public Action(int type, String path, String target, long size, long remoteSize) {
+            this.type = type;
+            this.path = path;
+            this.target = target;
+            this.size = size;
+            this.remoteSize = remoteSize;
+        }
+    }
+
+}
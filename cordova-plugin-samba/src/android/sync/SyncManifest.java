@@ -0,0 +1,150 @@
+package net.cloudseat.smbova;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 同步清单
+ * 每对同步目录一个文件，记录上次同步后每个文件的大小、两端的修改时间和可选的本地摘要，
+ * 下次同步时与两端的当前状态比较，得出各自的新增、修改和删除
+ * 保存时先写入临时文件再重命名
+ */
+public class SyncManifest {
+
+    /**
+     * 上次同步后的文件状态
+     */
+    public static class Entry {
+        public final long size;
+        public final long localModified;
+        public final long remoteModified;
+        // 本地文件的 MD5，未开启摘要时为空
+        public final String hash;
+
+        public Entry(long size, long localModified, long remoteModified, String hash) {
+            this.size = size;
+            this.localModified = localModified;
+            this.remoteModified = remoteModified;
+            this.hash = hash;
+        }
+    }
+
+    private final File file;
+    private final String local;
+    private final String remote;
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    private SyncManifest(File file, String local, String remote) {
+        this.file = file;
+        this.local = local;
+        this.remote = remote;
+    }
+
+    /**
+     * 读取清单，不存在或无法解析时返回空清单（首次同步）
+     * @param File dir 清单目录
+     * @param String local 本地目录
+     * @param String remote 远程目录
+     * @return SyncManifest
+     */
+    public static SyncManifest open(File dir, String local, String remote) {
+        SyncManifest manifest = new SyncManifest(new File(dir, Digests.md5Hex(local + "|" + remote) + ".json"), local, remote);
+        try {
+            JSONObject json = new JSONObject(LocalFiles.readText(manifest.file));
+            if (local.equals(json.getString("local")) && remote.equals(json.getString("remote"))) {
+                JSONObject files = json.getJSONObject("files");
+                Iterator<String> keys = files.keys();
+                while (keys.hasNext()) {
+                    String path = keys.next();
+                    JSONObject entry = files.getJSONObject(path);
+                    manifest.entries.put(path, new Entry(
+                        entry.getLong("size"),
+                        entry.getLong("localModified"),
+                        entry.getLong("remoteModified"),
+                        entry.optString("hash", null)
+                    ));
+                }
+            }
+        } catch (IOException | JSONException e) {
+            // 没有清单，按首次同步处理
+        }
+        return manifest;
+    }
+
+    public String getLocal() {
+        return local;
+    }
+
+    public String getRemote() {
+        return remote;
+    }
+
+    public synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public synchronized void put(String path, Entry entry) {
+        entries.put(path, entry);
+    }
+
+    public synchronized void remove(String path) {
+        entries.remove(path);
+    }
+
+    /**
+     * 清单中的所有相对路径
+     * @return Set<String>
+     */
+    public synchronized Set<String> paths() {
+        return new TreeSet<String>(entries.keySet());
+    }
+
+    /**
+     * 保存清单
+     */
+    public synchronized void save() throws IOException {
+        try {
+            JSONObject files = new JSONObject();
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                Entry entry = item.getValue();
+                JSONObject json = new JSONObject();
+                json.put("size", entry.size);
+                json.put("localModified", entry.localModified);
+                json.put("remoteModified", entry.remoteModified);
+                if (entry.hash != null) json.put("hash", entry.hash);
+                files.put(item.getKey(), json);
+            }
+            JSONObject json = new JSONObject();
+            json.put("local", local);
+            json.put("remote", remote);
+            json.put("files", files);
+            LocalFiles.writeText(file, json.toString(), true);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * 计算本地文件的 MD5
+     * @param File file
+     * @return String
+     */
+    public static String hash(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return Digests.md5Hex(in);
+        } finally {
+            in.close();
+        }
+    }
+
+}
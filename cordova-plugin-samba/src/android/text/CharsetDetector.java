@@ -0,0 +1,91 @@
+package net.cloudseat.smbova;
+
+import java.nio.charset.Charset;
+
+/**
+ * 文本编码识别
+ * 优先根据 BOM 判断；无 BOM 时按采样数据依次检查 UTF-16（大量 0 字节）、合法 UTF-8，
+ * 都不符合时视为 GBK
+ */
+public class CharsetDetector {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+    public static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+    public static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+    public static final Charset GBK = Charset.forName("GBK");
+
+    public final Charset charset;
+    // BOM 字节数，读取时跳过
+    public final int bomLength;
+
+    private CharsetDetector(Charset charset, int bomLength) {
+        this.charset = charset;
+        this.bomLength = bomLength;
+    }
+
+    /**
+     * 根据文件开头的采样数据识别编码
+     * @param byte[] b
+     * @param int length 有效字节数
+     * @return CharsetDetector
+     */
+    public static CharsetDetector detect(byte[] b, int length) {
+        if (length >= 3 && (b[0] & 0xFF) == 0xEF && (b[1] & 0xFF) == 0xBB && (b[2] & 0xFF) == 0xBF) {
+            return new CharsetDetector(UTF_8, 3);
+        }
+        if (length >= 2 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xFE) {
+            return new CharsetDetector(UTF_16LE, 2);
+        }
+        if (length >= 2 && (b[0] & 0xFF) == 0xFE && (b[1] & 0xFF) == 0xFF) {
+            return new CharsetDetector(UTF_16BE, 2);
+        }
+
+        // 无 BOM 的 UTF-16：西文字符的高字节为 0
+        int evenZeros = 0, oddZeros = 0;
+        for (int i = 0; i < length; i++) {
+            if (b[i] == 0) {
+                if ((i & 1) == 0) evenZeros++; else oddZeros++;
+            }
+        }
+        if (oddZeros > length / 4 && oddZeros > evenZeros * 4) {
+            return new CharsetDetector(UTF_16LE, 0);
+        }
+        if (evenZeros > length / 4 && evenZeros > oddZeros * 4) {
+            return new CharsetDetector(UTF_16BE, 0);
+        }
+        return new CharsetDetector(isUtf8(b, length) ? UTF_8 : GBK, 0);
+    }
+
+    /**
+     * 是否 UTF-16，UTF-16 的换行符占两个字节
+     * @return boolean
+     */
+    public boolean isUtf16() {
+        return charset == UTF_16LE || charset == UTF_16BE;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    // 检查是否合法 UTF-8，采样末尾被截断的多字节字符视为合法
+    private static boolean isUtf8(byte[] b, int length) {
+        int i = 0;
+        while (i < length) {
+            int c = b[i] & 0xFF;
+            int n;
+            if (c < 0x80) n = 0;
+            else if (c >= 0xC2 && c <= 0xDF) n = 1;
+            else if (c >= 0xE0 && c <= 0xEF) n = 2;
+            else if (c >= 0xF0 && c <= 0xF4) n = 3;
+            else return false;
+            for (int k = 1; k <= n; k++) {
+                if (i + k >= length) return true;
+                if ((b[i + k] & 0xC0) != 0x80) return false;
+            }
+            i += n + 1;
+        }
+        return true;
+    }
+
+}
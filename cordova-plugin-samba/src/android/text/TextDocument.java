@@ -0,0 +1,335 @@
+package net.cloudseat.smbova;
+
+import android.util.LruCache;
+
+import jcifs.smb.SmbRandomAccessFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 大文本文件的分段读取
+ * 后台顺序扫描一遍文件，每隔 INDEX_INTERVAL 行记录一次行首偏移（稀疏行索引）；
+ * 读取任意行区间时从最近的检查点开始按区间读取，只解码该区间的字节
+ * 编码在打开时根据文件开头识别一次；head/tail 只读取文件开头或末尾
+ */
+public class TextDocument {
+
+    // 每隔多少行记录一个检查点
+    private static final int INDEX_INTERVAL = 1000;
+    // 扫描时每次读取的字节数
+    private static final int BLOCK_SIZE = 256 * 1024;
+    // 编码识别采样字节数
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    // 单次返回的最大字节数，超长的行会被截断
+    private static final int MAX_WINDOW_BYTES = 4 * 1024 * 1024;
+    // 单次返回的最大行数
+    public static final int MAX_LINES = 10000;
+
+    // 按路径缓存已打开的文档，文件大小或修改时间变化时重新打开
+    private static final LruCache<String, TextDocument> documents = new LruCache<String, TextDocument>(16);
+
+    public final String path;
+    public final long size;
+    public final long lastModified;
+    public final CharsetDetector encoding;
+    // 换行符单元长度，UTF-16 为 2
+    private final int unit;
+
+    // checkpoints[i] 为第 i * INDEX_INTERVAL 行的行首偏移
+    private long[] checkpoints = new long[64];
+    private int checkpointCount = 1;
+    private long indexedBytes = 0;
+    private long indexedLines = 0;
+    // 最后一个换行符之后的偏移
+    private long lastLineStart = 0;
+    private boolean complete = false;
+    private boolean indexing = false;
+
+    private TextDocument(String path, long size, long lastModified, CharsetDetector encoding) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.encoding = encoding;
+        this.unit = encoding.isUtf16() ? 2 : 1;
+        this.checkpoints[0] = encoding.bomLength;
+        this.indexedBytes = encoding.bomLength;
+        this.lastLineStart = encoding.bomLength;
+    }
+
+    /**
+     * 打开文档，文件未变化时复用已有的编码和行索引
+     * @param String path
+     * @return TextDocument
+     */
+    public static TextDocument open(String path) throws IOException {
+        SambaFile file = new SambaFile(path);
+        long size = file.length();
+        long lastModified = file.getLastModified();
+        synchronized (documents) {
+            TextDocument document = documents.get(path);
+            if (document != null && document.size == size && document.lastModified == lastModified) {
+                return document;
+            }
+        }
+
+        byte[] sample = file.readRange(0, (int) Math.min(size, SAMPLE_SIZE));
+        TextDocument document = new TextDocument(path, size, lastModified,
+            CharsetDetector.detect(sample, sample.length));
+        synchronized (documents) {
+            documents.put(path, document);
+        }
+        return document;
+    }
+
+    /**
+     * 标记开始建立索引，已在建立或已完成时返回 false
+     * @return boolean
+     */
+    public synchronized boolean beginIndexing() {
+        if (indexing || complete) return false;
+        indexing = true;
+        return true;
+    }
+
+    /**
+     * 顺序扫描整个文件建立稀疏行索引，在后台线程调用
+     * 可中途失败，下次从已扫描的位置继续
+     */
+    public void buildIndex() throws IOException {
+        SmbRandomAccessFile raf = openFile();
+        try {
+            byte[] block = new byte[BLOCK_SIZE];
+            long position, lines, lineStart;
+            synchronized (this) {
+                position = indexedBytes;
+                lines = indexedLines;
+                lineStart = lastLineStart;
+            }
+            while (position < size) {
+                int n = read(raf, position, block);
+                if (n <= 0) break;
+                int end = n - n % unit;
+                for (int i = 0; i + unit <= end; i += unit) {
+                    if (isNewline(block, i)) {
+                        lines++;
+                        lineStart = position + i + unit;
+                        if (lines % INDEX_INTERVAL == 0) addCheckpoint(lineStart);
+                    }
+                }
+                position += end > 0 ? end : n;
+                synchronized (this) {
+                    indexedBytes = position;
+                    indexedLines = lines;
+                    lastLineStart = lineStart;
+                }
+            }
+            synchronized (this) {
+                complete = position >= size;
+            }
+        } finally {
+            synchronized (this) {
+                indexing = false;
+            }
+            raf.close();
+        }
+    }
+
+    /**
+     * 读取从 start 行开始的 count 行
+     * @param long start 从 0 开始
+     * @param int count 不超过 MAX_LINES
+     * @return JSONObject {start, lines, eof, truncated}
+     */
+    public JSONObject readLines(long start, int count) throws IOException, JSONException {
+        count = Math.min(Math.max(count, 0), MAX_LINES);
+        long line, offset;
+        synchronized (this) {
+            int index = (int) Math.min(start / INDEX_INTERVAL, checkpointCount - 1);
+            line = (long) index * INDEX_INTERVAL;
+            offset = checkpoints[index];
+        }
+
+        SmbRandomAccessFile raf = openFile();
+        try {
+            // 从检查点跳到起始行，再读取窗口
+            offset = scan(raf, offset, start - line, null);
+            ByteArrayOutputStream window = new ByteArrayOutputStream();
+            long end = scan(raf, offset, count, window);
+
+            JSONObject result = new JSONObject();
+            result.put("start", start);
+            result.put("lines", decode(window.toByteArray(), window.size(), count));
+            result.put("eof", end >= size);
+            result.put("truncated", window.size() >= MAX_WINDOW_BYTES);
+            return result;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 读取开头 count 行
+     * @param int count
+     * @return JSONObject
+     */
+    public JSONObject head(int count) throws IOException, JSONException {
+        return readLines(0, count);
+    }
+
+    /**
+     * 读取末尾 count 行，从文件末尾向前按倍增的区间读取，不读取中间部分
+     * @param int count
+     * @return JSONObject {start, lines, eof}，行索引未完成时 start 为 -1
+     */
+    public JSONObject tail(int count) throws IOException, JSONException {
+        count = Math.min(Math.max(count, 0), MAX_LINES);
+        long begin = encoding.bomLength;
+        int length = BLOCK_SIZE;
+        byte[] bytes;
+        int from;
+
+        SmbRandomAccessFile raf = openFile();
+        try {
+            while (true) {
+                long offset = Math.max(begin, size - length);
+                offset -= (offset - begin) % unit;
+                bytes = new byte[(int) (size - offset)];
+                raf.seek(offset);
+                raf.readFully(bytes);
+                from = findTailStart(bytes, count);
+                // 找到足够的行、已到文件开头或达到窗口上限
+                if (from > 0 || offset == begin || length >= MAX_WINDOW_BYTES) break;
+                length *= 2;
+            }
+        } finally {
+            raf.close();
+        }
+
+        JSONArray lines = decode(Arrays.copyOfRange(bytes, Math.max(from, 0), bytes.length),
+            bytes.length - Math.max(from, 0), count);
+        JSONObject result = new JSONObject();
+        synchronized (this) {
+            result.put("start", complete ? totalLines() - lines.length() : -1);
+        }
+        result.put("lines", lines);
+        result.put("eof", true);
+        return result;
+    }
+
+    /**
+     * 文档状态
+     * @return JSONObject {path, size, charset, indexed, lines, complete}
+     */
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject status = new JSONObject();
+        status.put("path", path);
+        status.put("size", size);
+        status.put("charset", encoding.charset.name());
+        status.put("indexed", indexedBytes);
+        status.put("lines", complete ? totalLines() : indexedLines);
+        status.put("complete", complete);
+        return status;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private SmbRandomAccessFile openFile() throws MalformedURLException, IOException {
+        // SmbFile 持有打开的句柄，不能在线程间共享，每次读取使用新的实例
+        return new SmbRandomAccessFile(new SambaFile(path), "r");
+    }
+
+    private int read(SmbRandomAccessFile raf, long position, byte[] block) throws IOException {
+        raf.seek(position);
+        return raf.read(block, 0, (int) Math.min(block.length, size - position));
+    }
+
+    /**
+     * 从 position 开始向后跳过 lines 个换行符
+     * @param SmbRandomAccessFile raf
+     * @param long position
+     * @param long lines
+     * @param ByteArrayOutputStream sink 不为空时保存经过的字节，最多 MAX_WINDOW_BYTES
+     * @return long 最后一个换行符之后的偏移，不足时为文件末尾
+     */
+    private long scan(SmbRandomAccessFile raf, long position, long lines, ByteArrayOutputStream sink)
+        throws IOException {
+
+        byte[] block = new byte[BLOCK_SIZE];
+        long found = 0;
+        while (found < lines && position < size) {
+            int n = read(raf, position, block);
+            if (n <= 0) break;
+            int end = n - n % unit;
+            int i = 0;
+            while (i + unit <= end && found < lines) {
+                if (isNewline(block, i)) found++;
+                i += unit;
+            }
+            // 与 buildIndex 相同，块末不足一个编码单元的字节留到下一块，保持按编码单元对齐
+            int consumed = found < lines ? (end > 0 ? end : n) : i;
+            if (sink != null) {
+                int room = MAX_WINDOW_BYTES - sink.size();
+                sink.write(block, 0, Math.min(consumed, room));
+                if (consumed >= room) return position + room;
+            }
+            position += consumed;
+        }
+        return position;
+    }
+
+    // 在末尾区间中找第 count 行的行首，文件末尾的换行符不算作一行；不足 count 行时返回 -1
+    private int findTailStart(byte[] bytes, int count) {
+        int end = bytes.length - bytes.length % unit;
+        if (end >= unit && isNewline(bytes, end - unit)) end -= unit;
+        int found = 0;
+        for (int i = end - unit; i >= 0; i -= unit) {
+            if (isNewline(bytes, i) && ++found == count) return i + unit;
+        }
+        return count == 0 ? bytes.length : -1;
+    }
+
+    private boolean isNewline(byte[] b, int i) {
+        if (unit == 1) return b[i] == '\n';
+        return encoding.charset == CharsetDetector.UTF_16LE
+            ? b[i] == '\n' && b[i + 1] == 0
+            : b[i] == 0 && b[i + 1] == '\n';
+    }
+
+    // 解码区间并按行拆分，去掉行尾的 '\r'
+    private JSONArray decode(byte[] bytes, int length, int count) {
+        String text = new String(bytes, 0, length, encoding.charset);
+        JSONArray lines = new JSONArray();
+        int from = 0;
+        while (from < text.length() && lines.length() < count) {
+            int to = text.indexOf('\n', from);
+            int next = to < 0 ? text.length() : to + 1;
+            if (to < 0) to = text.length();
+            if (to > from && text.charAt(to - 1) == '\r') to--;
+            lines.put(text.substring(from, to));
+            from = next;
+        }
+        return lines;
+    }
+
+    // 行数 = 换行符数，末尾没有换行符时再加一行
+    private long totalLines() {
+        return indexedLines + (size > lastLineStart ? 1 : 0);
+    }
+
+    private synchronized void addCheckpoint(long offset) {
+        if (checkpointCount == checkpoints.length) {
+            checkpoints = Arrays.copyOf(checkpoints, checkpointCount * 2);
+        }
+        checkpoints[checkpointCount++] = offset;
+    }
+
+}
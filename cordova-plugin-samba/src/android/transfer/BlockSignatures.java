@@ -0,0 +1,179 @@
+package net.cloudseat.smbova;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 文件的分块签名
+ * 每块记录 MD5；块只在相同偏移处比较，没有滚动查找，上传后又要保存每块的 MD5，所以不另设弱校验
+ * 按远程路径、大小和修改时间缓存在本地，远程文件未变化时不必重新读取
+ */
+public class BlockSignatures {
+
+    private static final int MAGIC = 0x53494732;
+    private static final int MIN_BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+    // 块数大致不超过此值，签名文件保持在 1 MB 以内
+    private static final long TARGET_BLOCKS = 16384;
+
+    public final String path;
+    public final long size;
+    public final long lastModified;
+    public final int blockSize;
+    private final byte[][] strong;
+
+    /**
+     * @param String path 远程路径
+     * @param long size
+     * @param long lastModified 远程修改时间
+     * @param int blockSize
+     */
+    public BlockSignatures(String path, long size, long lastModified, int blockSize) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.blockSize = blockSize;
+        int count = (int) ((size + blockSize - 1) / blockSize);
+        this.strong = new byte[count][];
+    }
+
+    private BlockSignatures(BlockSignatures other, long lastModified) {
+        this.path = other.path;
+        this.size = other.size;
+        this.lastModified = lastModified;
+        this.blockSize = other.blockSize;
+        this.strong = other.strong;
+    }
+
+    /**
+     * 相同内容、不同修改时间的签名，上传后用本地签名作为远程文件的新签名
+     * @param long lastModified
+     * @return BlockSignatures
+     */
+    public BlockSignatures withLastModified(long lastModified) {
+        return new BlockSignatures(this, lastModified);
+    }
+
+    /**
+     * 根据文件大小选择块大小：2 的幂，64 KB 到 4 MB
+     * @param long size
+     * @return int
+     */
+    public static int blockSizeFor(long size) {
+        int blockSize = MIN_BLOCK_SIZE;
+        while (blockSize < MAX_BLOCK_SIZE && (long) blockSize * TARGET_BLOCKS < size) {
+            blockSize *= 2;
+        }
+        return blockSize;
+    }
+
+    /**
+     * 读取缓存的签名，不存在或与远程文件不一致时返回空
+     * @param File dir 缓存目录
+     * @param String path
+     * @param long size
+     * @param long lastModified
+     * @return BlockSignatures
+     */
+    public static BlockSignatures load(File dir, String path, long size, long lastModified) {
+        File file = cacheFile(dir, path);
+        if (!file.isFile()) return null;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(LocalFiles.read(file)));
+            try {
+                if (in.readInt() != MAGIC || !path.equals(in.readUTF())
+                    || in.readLong() != size || in.readLong() != lastModified) {
+                    return null;
+                }
+                BlockSignatures signatures = new BlockSignatures(path, size, lastModified, in.readInt());
+                for (int i = 0; i < signatures.count(); i++) {
+                    signatures.strong[i] = new byte[16];
+                    in.readFully(signatures.strong[i]);
+                }
+                return signatures;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 写入缓存
+     * @param File dir
+     */
+    public void save(File dir) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + count() * 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeUTF(path);
+        out.writeLong(size);
+        out.writeLong(lastModified);
+        out.writeInt(blockSize);
+        for (int i = 0; i < count(); i++) {
+            out.write(strong[i]);
+        }
+        out.close();
+        LocalFiles.write(cacheFile(dir, path), bytes.toByteArray(), false);
+    }
+
+    /**
+     * 块数
+     * @return int
+     */
+    public int count() {
+        return strong.length;
+    }
+
+    /**
+     * 计算并记录一块的签名，可由多个线程对不同的块调用
+     * @param int index
+     * @param byte[] b
+     * @param int len
+     */
+    public void set(int index, byte[] b, int len) {
+        strong[index] = strong(b, len);
+    }
+
+    /**
+     * 第 index 块是否与另一组签名相同，两组签名的块大小必须相同
+     * @param int index
+     * @param BlockSignatures other
+     * @return boolean
+     */
+    public boolean matches(int index, BlockSignatures other) {
+        if (index >= count() || index >= other.count() || blockLength(index) != other.blockLength(index)) {
+            return false;
+        }
+        return Arrays.equals(strong[index], other.strong[index]);
+    }
+
+    /**
+     * 第 index 块的长度，最后一块可能不足 blockSize
+     * @param int index
+     * @return int
+     */
+    public int blockLength(int index) {
+        return (int) Math.min(blockSize, size - (long) index * blockSize);
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private static byte[] strong(byte[] b, int len) {
+        return Digests.md5(b, 0, len);
+    }
+
+    // 缓存文件名取远程路径的摘要
+    private static File cacheFile(File dir, String path) {
+        return new File(dir, Digests.md5Hex(path) + ".sig");
+    }
+
+}
@@ -0,0 +1,244 @@
+package net.cloudseat.smbova;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 传输缓冲区大小调节
+ * 按时间窗口统计吞吐量，逐级加倍或减半缓冲区，吞吐量不再提高时回到最好的大小并稳定下来，
+ * 稳定后定期交替向上向下试探以适应网络变化
+ * SMB 每次读写都要等待一个往返，缓冲区达到带宽时延积的 BDP_FACTOR 倍后往返只占一小部分时间，
+ * 因此已达到该大小时不再加大，也不试探小于该大小的缓冲区
+ * 每个服务器最终选定的大小保存到本地文件，下次传输（包括应用重启后）直接从该大小开始
+ */
+public class BufferTuner {
+
+    public static final int MIN_SIZE = 8 * 1024;
+    public static final int MAX_SIZE = 4 * 1024 * 1024;
+    public static final int INITIAL_SIZE = 64 * 1024;
+
+    // 统计窗口时长和最少样本数
+    private static final long WINDOW_NANOS = 250000000L;
+    private static final int MIN_SAMPLES = 4;
+    // 吞吐量至少提高 10% 才算更好
+    private static final double GAIN = 1.1;
+    // 稳定后每隔多少个窗口试探一次
+    private static final int PROBE_INTERVAL = 20;
+    // 最多保留的调节记录数
+    private static final int MAX_DECISIONS = 32;
+    // 缓冲区为带宽时延积的倍数，此时往返时间约占每次读写的 1/5
+    private static final int BDP_FACTOR = 4;
+
+    // 每个服务器上次选定的大小
+    private static final Map<String, Integer> remembered = new HashMap<String, Integer>();
+    private static File store;
+
+    private final String host;
+    private final int initialSize;
+    private volatile int size;
+
+    private int bestSize;
+    private double bestThroughput;
+    // 当前试探方向：1 加倍，-1 减半，0 已稳定
+    private int direction = 1;
+    private int nextProbe = 1;
+    private int stableWindows;
+
+    private long windowStart;
+    private long windowBytes;
+    private int windowSamples;
+    private double throughput;
+    // 单次请求的最短往返时间估计
+    private long rtt = -1;
+
+    private final List<JSONObject> decisions = new ArrayList<JSONObject>();
+
+    /**
+     * 从该服务器上次选定的大小开始
+     * @param String host
+     */
+    public BufferTuner(String host) {
+        this.host = host;
+        synchronized (remembered) {
+            Integer last = remembered.get(host);
+            this.initialSize = last != null ? last : INITIAL_SIZE;
+        }
+        this.size = this.bestSize = initialSize;
+    }
+
+    /**
+     * 设置保存选定大小的文件并读取上次保存的大小，在插件初始化时调用
+     * @param File file
+     */
+    public static void setStore(File file) {
+        synchronized (remembered) {
+            store = file;
+            if (!file.isFile()) return;
+            try {
+                JSONObject json = new JSONObject(LocalFiles.readText(file));
+                Iterator<String> keys = json.keys();
+                while (keys.hasNext()) {
+                    String host = keys.next();
+                    int size = json.getInt(host);
+                    if (size >= MIN_SIZE && size <= MAX_SIZE) remembered.put(host, size);
+                }
+            } catch (IOException | JSONException e) {
+                // 文件损坏时从默认大小开始
+            }
+        }
+    }
+
+    /**
+     * 根据远程路径取服务器地址
+     * @param String path smb://host/share/...
+     * @return BufferTuner
+     */
+    public static BufferTuner forPath(String path) {
+        return new BufferTuner(SmbUrl.host(path));
+    }
+
+    /**
+     * 当前建议的缓冲区大小
+     * @return int
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 记录一次网络读写，可由多个线程同时调用，吞吐量按窗口内的总字节数计算
+     * @param int bytes
+     * @param long nanos 本次读写耗时
+     */
+    public synchronized void record(int bytes, long nanos) {
+        long now = System.nanoTime();
+        if (windowSamples == 0) {
+            windowStart = now - nanos;
+        }
+        windowBytes += bytes;
+        windowSamples++;
+
+        // 扣除按当前吞吐量传输数据所需的时间，剩余部分近似为往返时间
+        long latency = throughput > 0 ? nanos - (long) (bytes / throughput * 1e9) : nanos;
+        if (latency > 0 && (rtt < 0 || latency < rtt)) {
+            rtt = latency;
+        }
+
+        long elapsed = now - windowStart;
+        if (elapsed >= WINDOW_NANOS && windowSamples >= MIN_SAMPLES) {
+            throughput = windowBytes / (elapsed / 1e9);
+            windowBytes = 0;
+            windowSamples = 0;
+            adjust();
+        }
+    }
+
+    /**
+     * 转换为 JSON，用于传输统计
+     * @return JSONObject {host, initialSize, size, throughput, rtt, target, decisions}
+     */
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("host", host);
+        json.put("initialSize", initialSize);
+        json.put("size", size);
+        json.put("throughput", (long) throughput);
+        json.put("rtt", rtt >= 0 ? rtt / 1000000.0 : -1);
+        json.put("target", target());
+        json.put("decisions", new JSONArray(decisions));
+        return json;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    // 每个窗口结束时调节一次
+    private void adjust() {
+        if (direction == 0) {
+            // 已稳定：跟踪当前吞吐量，到期后试探
+            bestThroughput = throughput;
+            if (++stableWindows < PROBE_INTERVAL) return;
+            stableWindows = 0;
+            direction = nextProbe;
+            nextProbe = -nextProbe;
+            step("probe");
+            return;
+        }
+
+        if (size == bestSize || throughput > bestThroughput * GAIN) {
+            // 首个窗口或比之前更好，继续同方向调节
+            bestSize = size;
+            bestThroughput = throughput;
+            step(direction > 0 ? "grow" : "shrink");
+        } else {
+            // 没有变好，回到最好的大小
+            settle("revert");
+        }
+    }
+
+    private void step(String action) {
+        int next = direction > 0 ? size * 2 : size / 2;
+        long target = target();
+        // 已足以掩盖往返时间时不再加大，也不减小到不足以掩盖
+        boolean beyond = target > 0 && (direction > 0 ? size >= target : next < target);
+        if (next < MIN_SIZE || next > MAX_SIZE || beyond) {
+            settle(beyond ? action + ", bdp" : action);
+            return;
+        }
+        size = next;
+        log(action);
+    }
+
+    private void settle(String action) {
+        direction = 0;
+        stableWindows = 0;
+        size = bestSize;
+        log(action + ", settle");
+        synchronized (remembered) {
+            Integer last = remembered.put(host, bestSize);
+            if (store != null && (last == null || last != bestSize)) save();
+        }
+    }
+
+    // 带宽时延积的 BDP_FACTOR 倍，尚未测得往返时间时返回 -1
+    private long target() {
+        if (rtt <= 0 || throughput <= 0) return -1;
+        return (long) (throughput * rtt / 1e9) * BDP_FACTOR;
+    }
+
+    private static void save() {
+        try {
+            LocalFiles.writeText(store, new JSONObject(remembered).toString(), false);
+        } catch (IOException e) {
+            // 保存失败只影响下次的初始大小
+        }
+    }
+
+    private void log(String action) {
+        try {
+            JSONObject decision = new JSONObject();
+            decision.put("action", action);
+            decision.put("size", size);
+            decision.put("throughput", (long) throughput);
+            decision.put("rtt", rtt >= 0 ? rtt / 1000000.0 : -1);
+            decision.put("target", target());
+            if (decisions.size() >= MAX_DECISIONS) {
+                decisions.remove(0);
+            }
+            decisions.add(decision);
+        } catch (JSONException e) {
+            // 记录失败不影响调节
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package net.cloudseat.smbova;
+
+import jcifs.smb.SmbRandomAccessFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 增量上传
+ * 取得远程文件的分块签名（优先使用缓存，否则多个连接分段读取远程文件计算），
+ * 逐块计算本地文件的签名，只把内容不同的块写入远程文件的相同位置，最后按本地大小截断或延长
+ * 写入完成后用本地文件的签名更新缓存，下次上传不必再读取远程文件
+ * 直接修改远程文件，中途中断时远程文件新旧内容混合，修改时间已变化，下次上传会重新读取签名并修正
+ */
+public class DeltaUpload {
+
+    // 计算远程签名的并发连接数
+    private static final int SIGNATURE_STREAMS = 4;
+
+    private final File source;
+    private final SambaFile target;
+    private final File cacheDir;
+    private final SambaFile.OnProgressListener listener;
+
+    /**
+     * @param File source 本地文件
+     * @param SambaFile target 已存在的远程文件
+     * @param File cacheDir 签名缓存目录
+     * @param OnProgressListener listener loaded 为已比较的本地字节数
+     */
+    public DeltaUpload(File source, SambaFile target, File cacheDir, SambaFile.OnProgressListener listener) {
+        this.source = source;
+        this.target = target;
+        this.cacheDir = cacheDir;
+        this.listener = listener;
+    }
+
+    /**
+     * 执行上传
+     * @return JSONObject {blockSize, blocks, changedBlocks, bytesWritten, signatures: "cache"|"remote"}
+     */
+    public JSONObject run() throws IOException, JSONException {
+        String path = target.getPath();
+        long remoteSize = target.length();
+        long remoteModified = target.lastModified();
+
+        BlockSignatures remote = BlockSignatures.load(cacheDir, path, remoteSize, remoteModified);
+        boolean cached = remote != null;
+        if (!cached) {
+            remote = remoteSignatures(path, remoteSize, remoteModified);
+        }
+
+        long length = source.length();
+        int blockSize = remote.blockSize;
+        BlockSignatures local = new BlockSignatures(path, length, 0, blockSize);
+        int changed = 0;
+        long written = 0;
+
+        RandomAccessFile in = new RandomAccessFile(source, "r");
+        SmbRandomAccessFile out = new SmbRandomAccessFile(target, "rw");
+        try {
+            byte[] b = new byte[blockSize];
+            for (int i = 0; i < local.count(); i++) {
+                int len = local.blockLength(i);
+                in.readFully(b, 0, len);
+                local.set(i, b, len);
+                if (!local.matches(i, remote)) {
+                    out.seek((long) i * blockSize);
+                    out.write(b, 0, len);
+                    changed++;
+                    written += len;
+                }
+                listener.onProgress((long) i * blockSize + len, length);
+            }
+            if (length != remoteSize) {
+                out.setLength(length);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+
+        // 以写入后的修改时间保存本地签名，作为远程文件的新签名
+        local.withLastModified(new SambaFile(path).lastModified()).save(cacheDir);
+
+        JSONObject stats = new JSONObject();
+        stats.put("blockSize", blockSize);
+        stats.put("blocks", local.count());
+        stats.put("changedBlocks", changed);
+        stats.put("bytesWritten", written);
+        stats.put("signatures", cached ? "cache" : "remote");
+        return stats;
+    }
+
+    /**
+     * 整个上传后用本地文件计算并缓存签名，下次增量上传不必读取远程文件
+     * @param File source
+     * @param SambaFile target 已上传的远程文件
+     * @param File cacheDir
+     */
+    public static void saveSignatures(File source, SambaFile target, File cacheDir) throws IOException {
+        long length = source.length();
+        BlockSignatures signatures = new BlockSignatures(
+            target.getPath(), length, target.lastModified(), BlockSignatures.blockSizeFor(length));
+        RandomAccessFile in = new RandomAccessFile(source, "r");
+        try {
+            byte[] b = new byte[signatures.blockSize];
+            for (int i = 0; i < signatures.count(); i++) {
+                int len = signatures.blockLength(i);
+                in.readFully(b, 0, len);
+                signatures.set(i, b, len);
+            }
+        } finally {
+            in.close();
+        }
+        signatures.save(cacheDir);
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    // 多个连接分别读取不同的块计算签名
+    private BlockSignatures remoteSignatures(final String path, long size, long lastModified) throws IOException {
+        final BlockSignatures signatures = new BlockSignatures(path, size, lastModified, BlockSignatures.blockSizeFor(size));
+        final AtomicInteger cursor = new AtomicInteger();
+        int threads = Math.max(1, Math.min(SIGNATURE_STREAMS, signatures.count()));
+
+        WorkerGroup group = new WorkerGroup(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(threads);
+            for (int t = 0; t < threads; t++) {
+                futures.add(group.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        // SmbFile 持有打开的句柄，每个线程使用独立的实例
+                        SmbRandomAccessFile raf = new SmbRandomAccessFile(new SambaFile(path), "r");
+                        try {
+                            byte[] b = new byte[signatures.blockSize];
+                            int i;
+                            while ((i = cursor.getAndIncrement()) < signatures.count()) {
+                                int len = signatures.blockLength(i);
+                                raf.seek((long) i * signatures.blockSize);
+                                raf.readFully(b, 0, len);
+                                signatures.set(i, b, len);
+                            }
+                            return null;
+                        } catch (IOException e) {
+                            // 把游标推到末尾，其他线程不再领取
+                            cursor.set(signatures.count());
+                            throw e;
+                        } finally {
+                            raf.close();
+                        }
+                    }
+                }));
+            }
+            group.await();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            group.cancel();
+            Thread.currentThread().interrupt();
+            throw new IOException("Signature interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        return signatures;
+    }
+
+}
@@ -0,0 +1,144 @@
+package net.cloudseat.smbova;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 断点续传日志
+ * 与 .part 文件放在一起，记录远程路径、大小、修改时间和已完成的区间；
+ * 远程文件未变化时从已完成的分段之后继续下载
+ * 每次先写入临时文件再重命名，中途断电也不会留下损坏的日志
+ */
+public class DownloadJournal {
+
+    public static final String SUFFIX = ".journal";
+
+    private final File file;
+    private final String path;
+    private final long size;
+    private final long lastModified;
+    private final long segmentSize;
+    private final BitSet done = new BitSet();
+
+    private DownloadJournal(File file, String path, long size, long lastModified, long segmentSize) {
+        this.file = file;
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * 读取日志，不存在或远程文件已变化时返回空日志
+     * @param String partPath 本地 .part 文件路径
+     * @param String path 远程路径
+     * @param long size
+     * @param long lastModified
+     * @param long segmentSize
+     * @return DownloadJournal
+     */
+    public static DownloadJournal open(String partPath, String path, long size, long lastModified, long segmentSize) {
+        DownloadJournal journal = new DownloadJournal(new File(partPath + SUFFIX), path, size, lastModified, segmentSize);
+        try {
+            JSONObject json = new JSONObject(LocalFiles.readText(journal.file));
+            if (path.equals(json.getString("path")) && json.getLong("size") == size
+                && json.getLong("lastModified") == lastModified && json.getLong("segmentSize") == segmentSize) {
+                JSONArray ranges = json.getJSONArray("ranges");
+                for (int i = 0; i < ranges.length(); i++) {
+                    JSONArray range = ranges.getJSONArray(i);
+                    journal.done.set((int) (range.getLong(0) / segmentSize),
+                        (int) ((range.getLong(1) + segmentSize - 1) / segmentSize));
+                }
+            }
+        } catch (IOException | JSONException e) {
+            // 没有日志或日志无法解析，从头下载
+        }
+        return journal;
+    }
+
+    /**
+     * 分段是否已完成
+     * @param int segment
+     * @return boolean
+     */
+    public synchronized boolean isDone(int segment) {
+        return done.get(segment);
+    }
+
+    /**
+     * 是否没有任何已完成的分段
+     * @return boolean
+     */
+    public synchronized boolean isEmpty() {
+        return done.isEmpty();
+    }
+
+    /**
+     * 清空已完成的分段，本地 .part 文件不可用时调用
+     */
+    public synchronized void reset() {
+        done.clear();
+    }
+
+    /**
+     * 已完成的字节数
+     * @return long
+     */
+    public synchronized long completedBytes() {
+        long bytes = 0;
+        for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1)) {
+            bytes += Math.min(segmentSize, size - (long) i * segmentSize);
+        }
+        return bytes;
+    }
+
+    /**
+     * 标记分段完成并写入日志，调用前分段数据必须已落盘
+     * @param int segment
+     */
+    public synchronized void complete(int segment) throws IOException {
+        done.set(segment);
+        save();
+    }
+
+    /**
+     * 删除日志
+     */
+    public void delete() {
+        file.delete();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    // 连续的已完成分段合并为 [start, end) 区间
+    private void save() throws IOException {
+        try {
+            JSONArray ranges = new JSONArray();
+            for (int i = done.nextSetBit(0); i >= 0; ) {
+                int end = done.nextClearBit(i);
+                JSONArray range = new JSONArray();
+                range.put((long) i * segmentSize);
+                range.put(Math.min((long) end * segmentSize, size));
+                ranges.put(range);
+                i = done.nextSetBit(end);
+            }
+            JSONObject json = new JSONObject();
+            json.put("path", path);
+            json.put("size", size);
+            json.put("lastModified", lastModified);
+            json.put("segmentSize", segmentSize);
+            json.put("ranges", ranges);
+            LocalFiles.writeText(file, json.toString(), true);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+package net.cloudseat.smbova;
+
+import jcifs.smb.SmbRandomAccessFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多连接分段下载，支持断点续传
+ * 远程文件按固定大小分段，多个线程各自打开 SmbRandomAccessFile 依次领取分段，
+ * 按偏移写入预先分配好大小的 .part 文件；进度按所有线程累计的字节数汇总
+ * 每完成一段先落盘再写入日志，中断后远程文件未变化时跳过已完成的分段，
+ * 全部完成后将 .part 文件重命名为目标文件
+ */
+public class ParallelDownload {
+
+    // 每个分段的大小，线程领取完一段再领下一段，快慢连接自然均衡
+    private static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+    // 最大并发连接数
+    public static final int MAX_STREAMS = 16;
+    // 下载中的临时文件后缀
+    public static final String PART_SUFFIX = ".part";
+
+    private final String path;
+    private final String localPath;
+    private final int streams;
+    private final BufferTuner tuner;
+    private final SambaFile.OnProgressListener listener;
+
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final AtomicLong loaded = new AtomicLong();
+    private volatile boolean failed = false;
+    private DownloadJournal journal;
+    private long length;
+    private int segments;
+
+    /**
+     * @param String path 远程文件路径
+     * @param String localPath
+     * @param int streams 并发连接数
+     * @param BufferTuner tuner 所有线程共用，按总吞吐量调节每次读取的大小
+     * @param OnProgressListener listener
+     */
+    public ParallelDownload(String path, String localPath, int streams, BufferTuner tuner,
+        SambaFile.OnProgressListener listener) {
+        this.path = path;
+        this.localPath = localPath;
+        this.streams = Math.min(Math.max(streams, 1), MAX_STREAMS);
+        this.tuner = tuner;
+        this.listener = listener;
+    }
+
+    /**
+     * 执行下载，任一分段失败时停止其余线程并抛出异常，已完成的分段保留在日志中
+     * @param long length 远程文件大小
+     * @param long lastModified 远程文件修改时间，与日志不一致时从头下载
+     */
+    public void run(long length, long lastModified) throws IOException {
+        this.length = length;
+        this.segments = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+
+        File part = new File(localPath + PART_SUFFIX);
+        journal = DownloadJournal.open(part.getPath(), path, length, lastModified, SEGMENT_SIZE);
+        if (part.length() != length) {
+            journal.reset();
+        }
+        loaded.set(journal.completedBytes());
+        int remaining = segments;
+        for (int i = 0; i < segments; i++) {
+            if (journal.isDone(i)) remaining--;
+        }
+        int threads = Math.min(streams, remaining);
+
+        RandomAccessFile file = new RandomAccessFile(part, "rw");
+        try {
+            // 预先分配空间，各线程按偏移写入
+            file.setLength(length);
+            FileChannel channel = file.getChannel();
+            if (threads == 1) {
+                new Worker(channel).call();
+            } else if (threads > 1) {
+                runWorkers(channel, threads);
+            }
+        } finally {
+            file.close();
+        }
+
+        // 同一目录内重命名，目标文件要么是旧文件要么是完整的新文件
+        File target = new File(localPath);
+        if (!part.renameTo(target)) {
+            throw new IOException("Cannot rename " + part + " to " + target);
+        }
+        journal.delete();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private void runWorkers(FileChannel channel, int threads) throws IOException {
+        WorkerGroup group = new WorkerGroup(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(threads);
+            for (int i = 0; i < threads; i++) {
+                futures.add(group.submit(new Worker(channel)));
+            }
+            group.await();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            failed = true;
+            group.cancel();
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted");
+        } catch (ExecutionException e) {
+            failed = true;
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    // 领取下一个未完成的分段，全部领完时返回 -1
+    private int nextSegment() {
+        int segment;
+        while ((segment = cursor.getAndIncrement()) < segments) {
+            if (!journal.isDone(segment)) return segment;
+        }
+        return -1;
+    }
+
+    private void progress(int bytes) {
+        loaded.addAndGet(bytes);
+        // 在锁内读取计数，保证回调收到的字节数单调递增
+        synchronized (listener) {
+            listener.onProgress(loaded.get(), length);
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 下载线程，持有独立的远程句柄，循环领取分段直到全部完成
+     */
+    private class Worker implements Callable<Void> {
+
+        private final FileChannel channel;
+
+        public Worker(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            // SmbFile 持有打开的句柄，每个线程使用独立的实例
+            final SmbRandomAccessFile raf = new SmbRandomAccessFile(new SambaFile(path), "r");
+            try {
+                PipelinedCopy.Source source = new PipelinedCopy.Source() {
+                    private byte[] b = new byte[0];
+
+                    @Override
+                    public int read(ByteBuffer buffer) throws IOException {
+                        if (failed) return -1;
+                        // 与直接缓冲区同样大小，流水线换小缓冲区时一起缩小
+                        if (b.length < buffer.remaining() || b.length > buffer.capacity()) {
+                            b = new byte[buffer.capacity()];
+                        }
+                        long start = System.nanoTime();
+                        int len = raf.read(b, 0, buffer.remaining());
+                        if (len > 0) {
+                            tuner.record(len, System.nanoTime() - start);
+                            buffer.put(b, 0, len);
+                        }
+                        return len;
+                    }
+                };
+                PipelinedCopy.Sink sink = new PipelinedCopy.Sink() {
+                    @Override
+                    public void write(ByteBuffer buffer, long position) throws IOException {
+                        int len = buffer.remaining();
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                        progress(len);
+                    }
+                };
+
+                int segment;
+                while (!failed && (segment = nextSegment()) >= 0) {
+                    long start = segment * SEGMENT_SIZE;
+                    long size = Math.min(SEGMENT_SIZE, length - start);
+                    raf.seek(start);
+                    // 网络读取与本地写入重叠进行
+                    if (PipelinedCopy.copy(source, sink, start, size, tuner) < size) {
+                        if (failed) break;
+                        throw new IOException("Unexpected end of file in segment " + segment);
+                    }
+                    // 数据落盘后才记入日志
+                    channel.force(false);
+                    journal.complete(segment);
+                }
+                return null;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+package net.cloudseat.smbova;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 读写流水线
+ * 调用线程负责读取，写入在独立线程中进行，两者通过固定数量的缓冲区环交替使用，
+ * 网络读取与磁盘写入同时进行，内存占用最多为 RING_SIZE 个缓冲区且不超过 MAX_RING_BYTES
+ * 每次读取的大小由 BufferTuner 决定，缓冲区为直接内存，从全局池中借用，用完归还
+ * 所有流水线（如多连接下载的每个连接）同时占用的缓冲区合计不超过 MAX_TOTAL_BYTES，
+ * 流水线增多时缩小缓冲区、减少数量，每个流水线仍至少保留两个缓冲区
+ */
+public class PipelinedCopy {
+
+    // 未指定调节器时每个缓冲区的大小，接近 SMB1 单次读写上限
+    public static final int BUFFER_SIZE = 60 * 1024;
+    // 每个流水线的缓冲区数
+    private static final int RING_SIZE = 4;
+    // 每个流水线的缓冲区总大小上限，缓冲区较大时减少数量，但至少保留两个
+    private static final long MAX_RING_BYTES = 8 * 1024 * 1024;
+    // 所有流水线同时占用的缓冲区总大小上限
+    private static final long MAX_TOTAL_BYTES = 16 * 1024 * 1024;
+    // 全局缓冲池最多保留的字节数
+    private static final long MAX_POOL_BYTES = 16 * 1024 * 1024;
+
+    private static final List<ByteBuffer> pool = new ArrayList<ByteBuffer>();
+    private static long pooledBytes = 0;
+    // 正在进行的流水线数
+    private static int pipelines = 0;
+    private static final ExecutorService writers = Executors.newCachedThreadPool();
+    // 读取结束标记
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+    /**
+     * 数据来源
+     */
+    public interface Source {
+        // 读取到 buffer 的当前位置，返回字节数，结束时返回 -1
+        public int read(ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * 数据去向，在写入线程中调用，进度也在此回调
+     */
+    public interface Sink {
+        // 写入 buffer 的全部剩余字节
+        public void write(ByteBuffer buffer, long position) throws IOException;
+    }
+
+    /**
+     * 复制数据，直到来源结束或复制完 length 字节
+     * @param Source source
+     * @param Sink sink
+     * @param long position 写入的起始位置
+     * @param long length
+     * @param BufferTuner tuner 为空时使用固定大小
+     * @return long 复制的字节数
+     */
+    public static long copy(Source source, Sink sink, long position, long length, BufferTuner tuner)
+        throws IOException {
+
+        synchronized (PipelinedCopy.class) {
+            pipelines++;
+        }
+        try {
+            return run(source, sink, position, length, tuner);
+        } finally {
+            synchronized (PipelinedCopy.class) {
+                pipelines--;
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private static long run(Source source, Sink sink, long position, long length, BufferTuner tuner)
+        throws IOException {
+
+        int size = bufferSize(tuner);
+        int ring = ringSize(size);
+        BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(RING_SIZE);
+        BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<ByteBuffer>(RING_SIZE + 1);
+        for (int i = 0; i < ring; i++) {
+            free.add(acquire(size));
+        }
+        Writer writer = new Writer(sink, position, free, filled);
+        Future<?> future = writers.submit(writer);
+
+        long read = 0;
+        try {
+            while (read < length && writer.error == null) {
+                ByteBuffer buffer = free.take();
+                size = bufferSize(tuner);
+                if (ring > ringSize(size)) {
+                    // 缓冲区加大或同时进行的流水线增多，减少缓冲区数量
+                    release(buffer);
+                    ring--;
+                    continue;
+                }
+                if (buffer.capacity() < size || buffer.capacity() / 2 >= size) {
+                    // 调节器改变了大小或总上限收紧，换成大小相近的缓冲区
+                    release(buffer);
+                    buffer = acquire(size);
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(size, length - read));
+                int len = source.read(buffer);
+                if (len <= 0) {
+                    free.add(buffer);
+                    break;
+                }
+                buffer.flip();
+                read += buffer.remaining();
+                filled.put(buffer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Copy interrupted");
+        } finally {
+            filled.add(EOF);
+            // 暂停或取消时线程已被中断，仍要等写入线程结束才能归还缓冲区，调用者随后会关闭写入的通道
+            boolean interrupted = Thread.interrupted();
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // 写入线程的异常已记录在 writer.error
+                    break;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            for (ByteBuffer buffer : free) release(buffer);
+        }
+
+        if (writer.error instanceof IOException) throw (IOException) writer.error;
+        if (writer.error instanceof RuntimeException) throw (RuntimeException) writer.error;
+        if (writer.error != null) throw new IOException(writer.error);
+        return writer.written;
+    }
+
+    // 调节器建议的大小，不超过总上限平分给每个流水线两个缓冲区后的大小
+    private static int bufferSize(BufferTuner tuner) {
+        int size = tuner != null ? tuner.size() : BUFFER_SIZE;
+        long share = MAX_TOTAL_BYTES / (2L * activePipelines());
+        return (int) Math.max(BufferTuner.MIN_SIZE, Math.min(size, share));
+    }
+
+    private static int ringSize(int size) {
+        long bytes = Math.min(MAX_RING_BYTES, MAX_TOTAL_BYTES / activePipelines());
+        return (int) Math.max(2, Math.min(RING_SIZE, bytes / size));
+    }
+
+    private static synchronized int activePipelines() {
+        return Math.max(pipelines, 1);
+    }
+
+    // 借用容量足够的最小缓冲区，没有或超过两倍时新建
+    private static synchronized ByteBuffer acquire(int size) {
+        int best = -1;
+        for (int i = 0; i < pool.size(); i++) {
+            int capacity = pool.get(i).capacity();
+            if (capacity >= size && capacity / 2 < size && (best < 0 || capacity < pool.get(best).capacity())) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer buffer = pool.remove(best);
+        pooledBytes -= buffer.capacity();
+        return buffer;
+    }
+
+    private static synchronized void release(ByteBuffer buffer) {
+        if (pooledBytes + buffer.capacity() <= MAX_POOL_BYTES) {
+            pool.add(buffer);
+            pooledBytes += buffer.capacity();
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 写入线程，写入出错后继续回收缓冲区直到读取结束，避免读取线程阻塞
+     */
+    private static class Writer implements Runnable {
+
+        private final Sink sink;
+        private final long position;
+        private final BlockingQueue<ByteBuffer> free;
+        private final BlockingQueue<ByteBuffer> filled;
+        volatile Throwable error;
+        volatile long written = 0;
+
+        public Writer(Sink sink, long position, BlockingQueue<ByteBuffer> free, BlockingQueue<ByteBuffer> filled) {
+            this.sink = sink;
+            this.position = position;
+            this.free = free;
+            this.filled = filled;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ByteBuffer buffer;
+                while ((buffer = filled.take()) != EOF) {
+                    if (error == null) {
+                        try {
+                            int len = buffer.remaining();
+                            sink.write(buffer, position + written);
+                            written += len;
+                        } catch (Throwable e) {
+                            error = e;
+                        }
+                    }
+                    free.add(buffer);
+                }
+            } catch (InterruptedException e) {
+                error = e;
+            }
+        }
+    }
+
+}
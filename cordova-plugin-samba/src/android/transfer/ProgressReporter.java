@@ -0,0 +1,99 @@
+package net.cloudseat.smbova;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 传输进度汇总
+ * 每次写入只更新计数，按设定频率在该传输自己保留的回调上发送进度事件：
+ * {type: "progress", id, loaded, total, speed, avgSpeed, eta}，目录传输中单个文件的事件另有 path
+ * 速度单位为字节/秒，eta 单位为秒，无法估算时为 -1
+ */
+public class ProgressReporter implements SambaFile.OnProgressListener {
+
+    // 每秒最多发送的事件数
+    public static final int DEFAULT_RATE = 4;
+
+    private final String id;
+    private final String path;
+    private final CallbackContext callback;
+    private final long interval;
+
+    private final long startTime = System.nanoTime();
+    private long startLoaded = -1;
+    private long lastTime = startTime;
+    private long lastLoaded;
+    private double speed;
+
+    /**
+     * @param String id 传输编号，区分并发的传输
+     * @param CallbackContext callback
+     * @param int rate 每秒最多发送的事件数
+     */
+    public ProgressReporter(String id, CallbackContext callback, int rate) {
+        this(id, null, callback, rate);
+    }
+
+    /**
+     * @param String id 传输编号
+     * @param String path 目录传输中的文件路径，为空时表示整个传输
+     * @param CallbackContext callback
+     * @param int rate 每秒最多发送的事件数
+     */
+    public ProgressReporter(String id, String path, CallbackContext callback, int rate) {
+        this.id = id;
+        this.path = path;
+        this.callback = callback;
+        this.interval = 1000000000L / Math.max(rate, 1);
+    }
+
+    /**
+     * 传输编号
+     * @return String
+     */
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public synchronized void onProgress(long loaded, long total) {
+        long now = System.nanoTime();
+        if (startLoaded < 0) {
+            // 续传时从已完成的字节数开始计算平均速度
+            startLoaded = lastLoaded = loaded;
+        }
+        if (now - lastTime < interval && loaded < total) {
+            return;
+        }
+
+        double seconds = (now - lastTime) / 1e9;
+        if (seconds > 0) {
+            speed = (loaded - lastLoaded) / seconds;
+        }
+        double elapsed = (now - startTime) / 1e9;
+        double avgSpeed = elapsed > 0 ? (loaded - startLoaded) / elapsed : 0;
+        lastTime = now;
+        lastLoaded = loaded;
+
+        try {
+            JSONObject event = new JSONObject();
+            event.put("type", "progress");
+            event.put("id", id);
+            if (path != null) event.put("path", path);
+            event.put("loaded", loaded);
+            event.put("total", total);
+            event.put("speed", (long) speed);
+            event.put("avgSpeed", (long) avgSpeed);
+            event.put("eta", avgSpeed > 0 ? Math.round((total - loaded) / avgSpeed) : -1);
+            PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+            result.setKeepCallback(true);
+            callback.sendPluginResult(result);
+        } catch (JSONException e) {
+            // 进度事件失败不影响传输
+        }
+    }
+
+}
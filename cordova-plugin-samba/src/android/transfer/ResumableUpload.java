@@ -0,0 +1,185 @@
+package net.cloudseat.smbova;
+
+import jcifs.smb.SmbRandomAccessFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 可续传的上传
+ * 先写入远程临时文件 <name>.part，并在本地日志中记录源文件标识和已写入的偏移；
+ * 再次上传同一文件时，逐字节比对远程临时文件末尾与本地对应区间，一致则从远程长度处继续写入，
+ * 否则从头上传；全部写完后才重命名为目标文件名
+ */
+public class ResumableUpload {
+
+    // 远程临时文件后缀
+    public static final String PART_SUFFIX = ".part";
+    // 续传前校验的末尾字节数
+    private static final int TAIL_SIZE = 64 * 1024;
+    // 每写入多少字节更新一次日志
+    private static final long JOURNAL_INTERVAL = 4 * 1024 * 1024;
+
+    private final File source;
+    private final SambaFile target;
+    private final File journal;
+    private final BufferTuner tuner;
+    private final SambaFile.OnProgressListener listener;
+
+    /**
+     * @param File source 本地文件
+     * @param SambaFile target 远程目标文件
+     * @param File journalDir 日志目录，为空时不记录日志，中断后只能从头上传
+     * @param BufferTuner tuner 调节每次写入的大小
+     * @param OnProgressListener listener
+     */
+    public ResumableUpload(File source, SambaFile target, File journalDir, BufferTuner tuner,
+        SambaFile.OnProgressListener listener) {
+        this.source = source;
+        this.target = target;
+        this.journal = journalDir != null ? new File(journalDir, journalName(target.getPath())) : null;
+        this.tuner = tuner;
+        this.listener = listener;
+    }
+
+    /**
+     * 执行上传
+     * @return long 本次续传跳过的字节数
+     */
+    public long run() throws IOException {
+        final long length = source.length();
+        SambaFile part = new SambaFile(target.getPath() + PART_SUFFIX);
+        final long offset = resumeOffset(part, length);
+
+        final SmbRandomAccessFile out = new SmbRandomAccessFile(part, "rw");
+        final FileChannel in = new FileInputStream(source).getChannel();
+        try {
+            // 丢弃未校验的部分，从续传位置写入
+            out.setLength(offset);
+            out.seek(offset);
+            in.position(offset);
+            saveJournal(offset);
+
+            // 本地读取与网络写入重叠进行
+            PipelinedCopy.copy(new PipelinedCopy.Source() {
+                @Override
+                public int read(ByteBuffer buffer) throws IOException {
+                    return in.read(buffer);
+                }
+            }, new PipelinedCopy.Sink() {
+                private byte[] b = new byte[0];
+                private long recorded = offset;
+
+                @Override
+                public void write(ByteBuffer buffer, long position) throws IOException {
+                    int len = buffer.remaining();
+                    if (b.length < len) {
+                        b = new byte[len];
+                    }
+                    buffer.get(b, 0, len);
+                    long start = System.nanoTime();
+                    out.write(b, 0, len);
+                    tuner.record(len, System.nanoTime() - start);
+                    position += len;
+                    listener.onProgress(position, length);
+                    if (position - recorded >= JOURNAL_INTERVAL) {
+                        saveJournal(position);
+                        recorded = position;
+                    }
+                }
+            }, offset, length - offset, tuner);
+        } finally {
+            in.close();
+            out.close();
+        }
+
+        // 写完后才替换目标文件，SMB 重命名不能覆盖已存在的文件
+        if (target.exists()) {
+            target.delete();
+        }
+        part.renameTo(target);
+        if (journal != null) {
+            journal.delete();
+        }
+        return offset;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 计算续传位置
+     * 日志中的源文件大小和修改时间与当前一致，且远程临时文件末尾与本地同一区间的内容一致时，
+     * 从远程临时文件长度处继续，否则返回 0
+     */
+    private long resumeOffset(SambaFile part, long length) throws IOException {
+        if (journal == null || !journal.isFile() || !part.exists()) {
+            return 0;
+        }
+        try {
+            JSONObject json = new JSONObject(LocalFiles.readText(journal));
+            if (!source.getPath().equals(json.getString("source"))
+                || json.getLong("size") != length || json.getLong("lastModified") != source.lastModified()) {
+                return 0;
+            }
+        } catch (JSONException e) {
+            return 0;
+        }
+
+        long remote = part.length();
+        if (remote <= 0 || remote > length) {
+            return 0;
+        }
+        int tail = (int) Math.min(TAIL_SIZE, remote);
+        byte[] remoteTail = new byte[tail];
+        SmbRandomAccessFile raf = new SmbRandomAccessFile(part, "r");
+        try {
+            raf.seek(remote - tail);
+            raf.readFully(remoteTail);
+        } finally {
+            raf.close();
+        }
+        byte[] localTail = new byte[tail];
+        RandomAccessFile local = new RandomAccessFile(source, "r");
+        try {
+            local.seek(remote - tail);
+            local.readFully(localTail);
+        } finally {
+            local.close();
+        }
+        // 两段都已在内存中，直接比较，不必再算摘要
+        return Arrays.equals(remoteTail, localTail) ? remote : 0;
+    }
+
+    // 记录源文件标识和已写入的偏移
+    private void saveJournal(long offset) throws IOException {
+        if (journal == null) return;
+        try {
+            JSONObject json = new JSONObject();
+            json.put("source", source.getPath());
+            json.put("size", source.length());
+            json.put("lastModified", source.lastModified());
+            json.put("target", target.getPath());
+            json.put("offset", offset);
+            // 保存频繁，不刷新到磁盘
+            LocalFiles.writeText(journal, json.toString(), false);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // 日志文件名取远程路径的摘要，避免路径中的特殊字符
+    private static String journalName(String path) {
+        return Digests.md5Hex(path) + ".upload";
+    }
+
+}
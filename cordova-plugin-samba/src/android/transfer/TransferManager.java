@@ -0,0 +1,382 @@
+package net.cloudseat.smbova;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 传输队列
+ * 按优先级（高者先）和入队顺序调度，同时限制总并发数和每个服务器的并发数，
+ * 启动的任务在插件的后台通道中执行，实际并发数还受后台通道的并发数限制；
+ * 暂停或取消运行中的任务时由进度回调中止传输，已写入的 .part 文件保留用于续传（取消时删除）
+ * 任务状态变化后延迟 SAVE_DELAY 保存到本地文件，连续的变化（如一次加入几百个任务）合并为一次写入，
+ * 应用重启后未完成的任务重新排队
+ */
+public class TransferManager {
+
+    public static final int DEFAULT_MAX_CONCURRENT = 3;
+    public static final int DEFAULT_MAX_PER_SERVER = 2;
+    // 状态变化后延迟保存的毫秒数
+    private static final long SAVE_DELAY = 500;
+
+    /**
+     * 执行具体传输，由插件实现
+     */
+    public interface Runner {
+        // 执行传输，返回结果；进度回调抛出 StoppedException 时中止
+        public JSONObject run(TransferTask task, SambaFile.OnProgressListener listener) throws Exception;
+        // 删除取消任务留下的临时文件
+        public void discard(TransferTask task);
+    }
+
+    /**
+     * 暂停或取消时由进度回调抛出，中止正在进行的传输
+     */
+    public static class StoppedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public StoppedException() {
+            super("Transfer stopped");
+        }
+    }
+
+    private final File store;
+    private final Runner runner;
+    private final Executor executor;
+    private final Map<String, TransferTask> tasks = new LinkedHashMap<String, TransferTask>();
+    private final Map<String, Integer> runningByHost = new HashMap<String, Integer>();
+    private int running = 0;
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private int maxPerServer = DEFAULT_MAX_PER_SERVER;
+    private long sequence = 0;
+    private CallbackContext events;
+    private final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "smb-transfer-save");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private boolean saveScheduled = false;
+
+    /**
+     * 读取保存的队列，上次运行中的任务重新排队
+     * @param File store 队列保存文件
+     * @param Runner runner
+     * @param Executor executor 执行传输的线程
+     */
+    public TransferManager(File store, Runner runner, Executor executor) {
+        this.store = store;
+        this.runner = runner;
+        this.executor = executor;
+        load();
+    }
+
+    /**
+     * 开始调度读取到的排队任务，在插件初始化完成后调用
+     */
+    public synchronized void start() {
+        schedule();
+    }
+
+    /**
+     * 立即保存尚未保存的变化并停止保存线程，在插件销毁时调用
+     */
+    public void shutdown() {
+        saver.shutdownNow();
+        save();
+    }
+
+    /**
+     * 设置接收事件的回调：{type: "state", task} 和 {type: "progress", ...}
+     * @param CallbackContext callback
+     */
+    public synchronized void setEventCallback(CallbackContext callback) {
+        this.events = callback;
+    }
+
+    /**
+     * 设置并发限制
+     * @param int maxConcurrent 总并发数
+     * @param int maxPerServer 每个服务器的并发数
+     */
+    public synchronized void configure(int maxConcurrent, int maxPerServer) {
+        this.maxConcurrent = Math.max(maxConcurrent, 1);
+        this.maxPerServer = Math.max(maxPerServer, 1);
+        schedule();
+    }
+
+    /**
+     * 加入队列
+     * @param TransferTask task
+     * @return TransferTask
+     */
+    public synchronized TransferTask enqueue(TransferTask task) {
+        if (tasks.containsKey(task.id)) {
+            throw new IllegalArgumentException("Duplicate transfer id: " + task.id);
+        }
+        tasks.put(task.id, task);
+        sequence = Math.max(sequence, task.sequence + 1);
+        changed(task);
+        schedule();
+        return task;
+    }
+
+    /**
+     * 生成入队顺序
+     * @return long
+     */
+    public synchronized long nextSequence() {
+        return sequence++;
+    }
+
+    /**
+     * 暂停任务，运行中的任务在下一次进度回调时中止
+     * @param String id
+     */
+    public synchronized void pause(String id) {
+        TransferTask task = get(id);
+        if (TransferTask.RUNNING.equals(task.state)) {
+            task.stopRequested = true;
+        }
+        if (!task.isFinished()) {
+            task.state = TransferTask.PAUSED;
+            changed(task);
+        }
+    }
+
+    /**
+     * 恢复暂停或失败的任务
+     * @param String id
+     */
+    public synchronized void resume(String id) {
+        TransferTask task = get(id);
+        if (TransferTask.PAUSED.equals(task.state) || TransferTask.FAILED.equals(task.state)) {
+            // 运行中被暂停的任务要等线程结束后才能重新调度
+            task.state = TransferTask.QUEUED;
+            task.error = null;
+            changed(task);
+            schedule();
+        }
+    }
+
+    /**
+     * 取消任务并删除临时文件
+     * @param String id
+     */
+    public void cancel(String id) {
+        TransferTask task;
+        boolean discard = false;
+        synchronized (this) {
+            task = get(id);
+            if (task.isFinished()) return;
+            if (TransferTask.RUNNING.equals(task.state) || task.stopRequested) {
+                // 由运行线程结束后删除
+                task.stopRequested = true;
+            } else {
+                discard = true;
+            }
+            task.state = TransferTask.CANCELLED;
+            changed(task);
+        }
+        if (discard) runner.discard(task);
+    }
+
+    /**
+     * 从列表中移除已结束的任务
+     */
+    public synchronized void clearFinished() {
+        Iterator<TransferTask> iterator = tasks.values().iterator();
+        while (iterator.hasNext()) {
+            TransferTask task = iterator.next();
+            if (task.isFinished() && !task.stopRequested) iterator.remove();
+        }
+        scheduleSave();
+    }
+
+    /**
+     * 所有任务
+     * @return JSONArray
+     */
+    public synchronized JSONArray list() throws JSONException {
+        JSONArray result = new JSONArray();
+        for (TransferTask task : tasks.values()) {
+            result.put(task.toJSON());
+        }
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private TransferTask get(String id) {
+        TransferTask task = tasks.get(id);
+        if (task == null) {
+            throw new IllegalArgumentException("No such transfer: " + id);
+        }
+        return task;
+    }
+
+    // 在并发限制内启动优先级最高的排队任务
+    private void schedule() {
+        while (running < maxConcurrent) {
+            TransferTask next = null;
+            for (TransferTask task : tasks.values()) {
+                if (!TransferTask.QUEUED.equals(task.state) || task.stopRequested) continue;
+                if (count(task.host()) >= maxPerServer) continue;
+                if (next == null || task.priority > next.priority
+                    || (task.priority == next.priority && task.sequence < next.sequence)) {
+                    next = task;
+                }
+            }
+            if (next == null) return;
+            launch(next);
+        }
+    }
+
+    private void launch(TransferTask task) {
+        running++;
+        runningByHost.put(task.host(), count(task.host()) + 1);
+        task.state = TransferTask.RUNNING;
+        changed(task);
+
+        ProgressReporter reporter = events != null
+            ? new ProgressReporter(task.id, events, ProgressReporter.DEFAULT_RATE) : null;
+        SambaFile.OnProgressListener listener = new SambaFile.OnProgressListener() {
+            @Override
+            public void onProgress(long loaded, long total) {
+                if (task.stopRequested) {
+                    throw new StoppedException();
+                }
+                task.loaded = loaded;
+                task.total = total;
+                if (reporter != null) reporter.onProgress(loaded, total);
+            }
+        };
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                JSONObject result = null;
+                Exception error = null;
+                try {
+                    result = runner.run(task, listener);
+                } catch (Exception e) {
+                    error = e;
+                }
+                finish(task, result, error);
+            }
+        });
+    }
+
+    private void finish(TransferTask task, JSONObject result, Exception error) {
+        boolean discard;
+        synchronized (this) {
+            running--;
+            runningByHost.put(task.host(), count(task.host()) - 1);
+            discard = TransferTask.CANCELLED.equals(task.state);
+            if (!task.stopRequested) {
+                if (error == null) {
+                    task.state = TransferTask.COMPLETED;
+                    task.result = result;
+                } else {
+                    task.state = TransferTask.FAILED;
+                    task.error = error.getMessage();
+                }
+            }
+            // 暂停后在运行结束前又被恢复的任务，此时状态为 queued，会被重新调度
+            task.stopRequested = false;
+            changed(task);
+            schedule();
+        }
+        if (discard) runner.discard(task);
+    }
+
+    private int count(String host) {
+        Integer count = runningByHost.get(host);
+        return count != null ? count : 0;
+    }
+
+    // 稍后保存队列并通知 JS
+    private void changed(TransferTask task) {
+        scheduleSave();
+        if (events == null) return;
+        try {
+            JSONObject event = new JSONObject();
+            event.put("type", "state");
+            event.put("task", task.toJSON());
+            PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+            result.setKeepCallback(true);
+            events.sendPluginResult(result);
+        } catch (JSONException e) {
+            // 事件失败不影响队列
+        }
+    }
+
+    // 在持有锁时调用，已有待执行的保存时不再安排
+    private void scheduleSave() {
+        if (saveScheduled || saver.isShutdown()) return;
+        saveScheduled = true;
+        saver.schedule(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    // 快照在队列锁内生成，写入文件时不持有队列锁；按 store 串行，不会用旧快照覆盖新快照
+    private void save() {
+        synchronized (store) {
+            String json;
+            synchronized (this) {
+                saveScheduled = false;
+                try {
+                    json = list().toString();
+                } catch (JSONException e) {
+                    return;
+                }
+            }
+            try {
+                LocalFiles.writeText(store, json, false);
+            } catch (IOException e) {
+                // 保存失败只影响重启后的恢复
+            }
+        }
+    }
+
+    private void load() {
+        if (!store.isFile()) return;
+        try {
+            JSONArray array = new JSONArray(LocalFiles.readText(store));
+            for (int i = 0; i < array.length(); i++) {
+                TransferTask task = TransferTask.fromJSON(array.getJSONObject(i), null, sequence);
+                if (TransferTask.RUNNING.equals(task.state)) {
+                    task.state = TransferTask.QUEUED;
+                }
+                tasks.put(task.id, task);
+                sequence = Math.max(sequence, task.sequence + 1);
+            }
+        } catch (IOException | JSONException e) {
+            // 队列文件损坏时从空队列开始
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+package net.cloudseat.smbova;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 传输队列中的任务
+ * 由 JS 传入的 {type, path, localPath, priority, streams, delta} 创建，状态随队列保存到本地
+ */
+public class TransferTask {
+
+    public static final String TYPE_UPLOAD = "upload";
+    public static final String TYPE_DOWNLOAD = "download";
+
+    public static final String QUEUED = "queued";
+    public static final String RUNNING = "running";
+    public static final String PAUSED = "paused";
+    public static final String COMPLETED = "completed";
+    public static final String FAILED = "failed";
+    public static final String CANCELLED = "cancelled";
+
+    public final String id;
+    public final String type;
+    // 远程路径，上传时为目标目录
+    public final String path;
+    // 本地路径，下载时完成后才确定
+    public String localPath;
+    public final int priority;
+    public final int streams;
+    // 入队顺序，优先级相同时先入先出
+    public final long sequence;
+    // 上传时只写入变化的块
+    public boolean delta;
+
+    public String state = QUEUED;
+    public long loaded;
+    public long total;
+    public String error;
+    public JSONObject result;
+
+    // 运行中请求停止，由进度回调检查
+    volatile boolean stopRequested;
+
+    public TransferTask(String id, String type, String path, String localPath, int priority, int streams, long sequence) {
+        this.id = id;
+        this.type = type;
+        this.path = path;
+        this.localPath = localPath;
+        this.priority = priority;
+        this.streams = streams;
+        this.sequence = sequence;
+    }
+
+    /**
+     * 解析 JS 传入或本地保存的任务
+     * @param JSONObject json
+     * @param String id 未指定编号时使用
+     * @param long sequence 未指定顺序时使用
+     * @return TransferTask
+     */
+    public static TransferTask fromJSON(JSONObject json, String id, long sequence) throws JSONException {
+        String type = json.getString("type");
+        if (!TYPE_UPLOAD.equals(type) && !TYPE_DOWNLOAD.equals(type)) {
+            throw new JSONException("Unknown transfer type: " + type);
+        }
+        TransferTask task = new TransferTask(
+            json.optString("id", id),
+            type,
+            json.getString("path"),
+            json.optString("localPath", null),
+            json.optInt("priority", 0),
+            json.optInt("streams", 1),
+            json.optLong("sequence", sequence)
+        );
+        task.delta = json.optBoolean("delta", false);
+        task.state = json.optString("state", QUEUED);
+        task.loaded = json.optLong("loaded", 0);
+        task.total = json.optLong("total", 0);
+        task.error = json.optString("error", null);
+        task.result = json.optJSONObject("result");
+        return task;
+    }
+
+    /**
+     * 服务器地址，用于按服务器限制并发
+     * @return String
+     */
+    public String host() {
+        return SmbUrl.host(path);
+    }
+
+    /**
+     * 是否已结束（完成、失败或取消）
+     * @return boolean
+     */
+    public boolean isFinished() {
+        return COMPLETED.equals(state) || FAILED.equals(state) || CANCELLED.equals(state);
+    }
+
+    /**
+     * 转换为 JSON，用于返回给 JS 和本地保存
+     * @return JSONObject
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("type", type);
+        json.put("path", path);
+        json.put("localPath", localPath);
+        json.put("priority", priority);
+        json.put("streams", streams);
+        json.put("sequence", sequence);
+        json.put("delta", delta);
+        json.put("state", state);
+        json.put("loaded", loaded);
+        json.put("total", total);
+        json.put("error", error);
+        json.put("result", result);
+        return json;
+    }
+
+}
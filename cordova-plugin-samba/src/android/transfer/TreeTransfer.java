@@ -0,0 +1,240 @@
+package net.cloudseat.smbova;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 目录传输
+ * 先遍历源目录，在目标端建立相同的目录结构并统计总大小，再由固定数量的线程并发传输文件；
+ * 单个文件失败不影响其他文件，结束后返回失败列表
+ * 每个文件仍走单文件的续传流程，中断后再次传输同一目录时已完成的文件会重新传输，未完成的从 .part 继续
+ */
+public class TreeTransfer {
+
+    public static final int DEFAULT_WORKERS = 3;
+    public static final int MAX_WORKERS = 8;
+
+    /**
+     * 单个文件的开始和结束
+     */
+    public interface OnFileListener {
+        // 开始传输文件，返回该文件的进度回调，path 为相对于根目录的路径
+        public SambaFile.OnProgressListener onStart(String path, long size);
+        // 文件传输结束，error 为空表示成功
+        public void onFinish(String path, long size, String error);
+    }
+
+    private final int workers;
+    private final File journalDir;
+    private final OnFileListener fileListener;
+    private final SambaFile.OnProgressListener listener;
+
+    private final List<Item> items = new ArrayList<Item>();
+    private final Map<String, String> failures = new LinkedHashMap<String, String>();
+    private final List<String> completed = new ArrayList<String>();
+    private long total = 0;
+    private long loaded = 0;
+
+    /**
+     * @param int workers 并发传输的文件数
+     * @param File journalDir 上传续传日志目录，下载时不使用
+     * @param OnFileListener fileListener
+     * @param OnProgressListener listener 所有文件的总进度
+     */
+    public TreeTransfer(int workers, File journalDir, OnFileListener fileListener, SambaFile.OnProgressListener listener) {
+        this.workers = Math.min(Math.max(workers, 1), MAX_WORKERS);
+        this.journalDir = journalDir;
+        this.fileListener = fileListener;
+        this.listener = listener;
+    }
+
+    /**
+     * 下载远程目录的全部内容到本地目录
+     * @param String smbDir 以 / 结尾
+     * @param String localDir
+     * @return JSONObject {path, files, size, completed, failed: [{path, error}]}
+     */
+    public JSONObject download(String smbDir, String localDir) throws IOException, JSONException {
+        crawlRemote(new SambaFile(smbDir), new File(localDir), "");
+        run(true);
+        return result(localDir);
+    }
+
+    /**
+     * 上传本地目录的全部内容到远程目录
+     * @param String localDir
+     * @param String smbDir 以 / 结尾
+     * @return JSONObject {path, files, size, completed, failed: [{path, error}]}
+     */
+    public JSONObject upload(String localDir, String smbDir) throws IOException, JSONException {
+        crawlLocal(new File(localDir), smbDir, "");
+        run(false);
+        return result(smbDir);
+    }
+
+    /**
+     * 下载完成的本地文件，用于更新系统相册
+     * @return List<String>
+     */
+    public synchronized List<String> completedFiles() {
+        return new ArrayList<String>(completed);
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    // 遍历远程目录，同时建立本地目录；隐藏文件和系统文件（Thumbs.db、$RECYCLE.BIN 等）不下载
+    private void crawlRemote(SambaFile dir, File localDir, String relative) throws IOException {
+        if (!localDir.isDirectory() && !localDir.mkdirs()) {
+            throw new IOException("Cannot create directory: " + localDir);
+        }
+        for (ListingEntry child : dir.listChildren(EntryFilter.VISIBLE)) {
+            if (child.type != 0) {
+                crawlRemote(new SambaFile(child.path), new File(localDir, child.name), relative + child.name + "/");
+            } else {
+                items.add(new Item(child.path, new File(localDir, child.name).getPath(), relative + child.name, child.size));
+                total += child.size;
+            }
+        }
+    }
+
+    // 遍历本地目录，同时建立远程目录
+    private void crawlLocal(File dir, String smbDir, String relative) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            throw new IOException("Cannot list directory: " + dir);
+        }
+        SambaFile remote = new SambaFile(smbDir);
+        if (!remote.exists()) {
+            remote.mkdirs();
+        }
+        for (File child : children) {
+            String name = child.getName();
+            if (child.isDirectory()) {
+                crawlLocal(child, smbDir + name + "/", relative + name + "/");
+            } else {
+                items.add(new Item(child.getPath(), smbDir + name, relative + name, child.length()));
+                total += child.length();
+            }
+        }
+    }
+
+    // 大文件先传，避免最后只剩一个大文件单线程传输
+    private void run(final boolean download) throws IOException {
+        Collections.sort(items, new Comparator<Item>() {
+            @Override
+            public int compare(Item a, Item b) {
+                return Long.compare(b.size, a.size);
+            }
+        });
+        listener.onProgress(0, total);
+
+        WorkerGroup group = new WorkerGroup(workers);
+        for (final Item item : items) {
+            group.execute(new Runnable() {
+                @Override
+                public void run() {
+                    transfer(item, download);
+                }
+            });
+        }
+        try {
+            group.await();
+        } catch (InterruptedException e) {
+            group.cancel();
+            Thread.currentThread().interrupt();
+            throw new IOException("Transfer interrupted");
+        }
+    }
+
+    private void transfer(Item item, boolean download) {
+        final SambaFile.OnProgressListener fileProgress = fileListener.onStart(item.path, item.size);
+        SambaFile.OnProgressListener progress = new SambaFile.OnProgressListener() {
+            private long last = 0;
+
+            @Override
+            public void onProgress(long current, long size) {
+                fileProgress.onProgress(current, size);
+                added(current - last);
+                last = current;
+            }
+        };
+
+        String error = null;
+        try {
+            if (download) {
+                new SambaFile(item.source).download(item.target, 1, progress);
+            } else {
+                new SambaFile(item.target).upload(item.source, journalDir, progress);
+            }
+        } catch (Exception e) {
+            error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+
+        synchronized (this) {
+            if (error == null) {
+                completed.add(item.target);
+            } else {
+                failures.put(item.path, error);
+            }
+        }
+        fileListener.onFinish(item.path, item.size, error);
+    }
+
+    // 在锁内累加并回调，保证总进度单调递增
+    private synchronized void added(long bytes) {
+        loaded += bytes;
+        listener.onProgress(loaded, total);
+    }
+
+    private synchronized JSONObject result(String path) throws JSONException {
+        JSONArray failed = new JSONArray();
+        for (Map.Entry<String, String> failure : failures.entrySet()) {
+            JSONObject json = new JSONObject();
+            json.put("path", failure.getKey());
+            json.put("error", failure.getValue());
+            failed.put(json);
+        }
+        JSONObject result = new JSONObject();
+        result.put("path", path);
+        result.put("files", items.size());
+        result.put("size", total);
+        result.put("completed", completed.size());
+        result.put("failed", failed);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 待传输的文件
+     */
+    private static class Item {
+        final String source;
+        final String target;
+        // 相对于根目录的路径
+        final String path;
+        final long size;
+
+        public Item(String source, String target, String path, long size) {
+            this.source = source;
+            this.target = target;
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+}
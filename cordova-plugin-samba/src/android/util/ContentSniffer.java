@@ -0,0 +1,223 @@
+package net.cloudseat.smbova;
+
+import android.util.LruCache;
+
+import jcifs.smb.SmbFile;
+import jcifs.smb.SmbRandomAccessFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * 文件内容类型识别
+ * 对无后缀或后缀不可识别的文件，只读取开头若干字节比对常见图片、音频、视频的魔数，
+ * 结果按路径+大小+修改时间缓存，同一目录只需识别一次
+ */
+public class ContentSniffer {
+
+    // 读取的文件头长度
+    private static final int HEAD_SIZE = 1024;
+    // MPEG-TS 包长，文件头中需连续出现的同步字节数
+    private static final int TS_PACKET = 188;
+    private static final int TS_PACKETS = 4;
+    // 识别结果缓存数量
+    private static final int CACHE_SIZE = 4096;
+    // 同时读取的文件头数
+    private static final int THREADS = 4;
+
+    private static final LruCache<String, Integer> cache = new LruCache<String, Integer>(CACHE_SIZE);
+
+    /**
+     * 识别单个文件
+     * @param SmbFile file
+     * @param long size
+     * @param long lastModified
+     * @return int 类型组，无法识别返回 0
+     */
+    public static int classify(SmbFile file, long size, long lastModified) throws IOException {
+        String key = file.getPath() + "|" + size + "|" + lastModified;
+        Integer group = cache.get(key);
+        if (group == null) {
+            group = sniff(readHead(file, size));
+            cache.put(key, group);
+        }
+        return group;
+    }
+
+    /**
+     * 为列表中类型组未知的文件识别类型，返回替换了类型组的新列表
+     * 已缓存的直接使用，其余并发读取文件头；单个文件读取失败时保持原值
+     * @param List<ListingEntry> entries
+     * @return List<ListingEntry>
+     */
+    public static List<ListingEntry> classify(List<ListingEntry> entries) {
+        WorkerGroup workers = new WorkerGroup(THREADS);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>(entries.size());
+        for (final ListingEntry entry : entries) {
+            if (!isCandidate(entry)) {
+                futures.add(null);
+                continue;
+            }
+            futures.add(workers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    return classify(new SambaFile(entry.path), entry.size, entry.lastModified);
+                }
+            }));
+        }
+        try {
+            workers.await();
+        } catch (InterruptedException e) {
+            // 取消时未识别的文件保持原值
+            workers.cancel();
+            Thread.currentThread().interrupt();
+        }
+
+        List<ListingEntry> result = new ArrayList<ListingEntry>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            ListingEntry entry = entries.get(i);
+            Future<Integer> future = futures.get(i);
+            int group = 0;
+            if (future != null && future.isDone() && !future.isCancelled()) {
+                try {
+                    group = future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // 读取失败不影响列表
+                }
+            }
+            result.add(group != 0 ? entry.withGroup(group) : entry);
+        }
+        return result;
+    }
+
+    /**
+     * 是否需要识别：类型组未知且足够长的文件
+     * @param ListingEntry entry
+     * @return boolean
+     */
+    public static boolean isCandidate(ListingEntry entry) {
+        return entry.type == 0 && entry.group == 0 && entry.size >= 4;
+    }
+
+    /**
+     * 根据文件头识别类型组
+     * @param byte[] h
+     * @return int
+     */
+    static int sniff(byte[] h) {
+        // 图片
+        if (startsWith(h, 0, 0xFF, 0xD8, 0xFF)) return SambaFile.GROUP_IMAGE;
+        if (startsWith(h, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) return SambaFile.GROUP_IMAGE;
+        if (startsWith(h, 0, 'G', 'I', 'F', '8')) return SambaFile.GROUP_IMAGE;
+        if (startsWith(h, 0, 'B', 'M') && h.length >= 26 && h[14] != 0) return SambaFile.GROUP_IMAGE;
+        if (startsWith(h, 0, 'I', 'I', 0x2A, 0x00) || startsWith(h, 0, 'M', 'M', 0x00, 0x2A)) return SambaFile.GROUP_IMAGE;
+        if (isIcon(h)) return SambaFile.GROUP_IMAGE;
+        if (startsWith(h, 0, 'R', 'I', 'F', 'F') && startsWith(h, 8, 'W', 'E', 'B', 'P')) return SambaFile.GROUP_IMAGE;
+
+        // 音频
+        if (startsWith(h, 0, 'I', 'D', '3')) return SambaFile.GROUP_AUDIO;
+        if (startsWith(h, 0, 'f', 'L', 'a', 'C')) return SambaFile.GROUP_AUDIO;
+        if (startsWith(h, 0, 'O', 'g', 'g', 'S')) return SambaFile.GROUP_AUDIO;
+        if (startsWith(h, 0, 'M', 'A', 'C', ' ')) return SambaFile.GROUP_AUDIO;
+        if (startsWith(h, 0, 'R', 'I', 'F', 'F') && startsWith(h, 8, 'W', 'A', 'V', 'E')) return SambaFile.GROUP_AUDIO;
+        if (startsWith(h, 0, 'F', 'O', 'R', 'M') && startsWith(h, 8, 'A', 'I', 'F')) return SambaFile.GROUP_AUDIO;
+        if (isMpegAudio(h) || isAdts(h)) return SambaFile.GROUP_AUDIO;
+
+        // 视频
+        if (startsWith(h, 0, 0x1A, 0x45, 0xDF, 0xA3)) return SambaFile.GROUP_VIDEO;
+        if (startsWith(h, 0, 'R', 'I', 'F', 'F') && startsWith(h, 8, 'A', 'V', 'I', ' ')) return SambaFile.GROUP_VIDEO;
+        if (startsWith(h, 0, 'F', 'L', 'V', 0x01)) return SambaFile.GROUP_VIDEO;
+        if (startsWith(h, 0, 0x00, 0x00, 0x01, 0xBA) || startsWith(h, 0, 0x00, 0x00, 0x01, 0xB3)) return SambaFile.GROUP_VIDEO;
+        if (startsWith(h, 0, '.', 'R', 'M', 'F')) return SambaFile.GROUP_VIDEO;
+        if (startsWith(h, 0, 0x30, 0x26, 0xB2, 0x75, 0x8E, 0x66, 0xCF, 0x11)) return SambaFile.GROUP_VIDEO;
+        if (isTransportStream(h)) return SambaFile.GROUP_VIDEO;
+
+        // ISO BMFF（MP4/MOV/3GP/M4A/HEIC/AVIF），按 ftyp 品牌区分
+        if (startsWith(h, 4, 'f', 't', 'y', 'p') && h.length >= 12) {
+            String brand = new String(h, 8, 4);
+            if (brand.startsWith("M4A") || brand.startsWith("M4B")) return SambaFile.GROUP_AUDIO;
+            if (brand.startsWith("hei") || brand.startsWith("hev") || brand.equals("mif1")
+                || brand.equals("msf1") || brand.startsWith("avi")) return SambaFile.GROUP_IMAGE;
+            return SambaFile.GROUP_VIDEO;
+        }
+        if (startsWith(h, 4, 'm', 'o', 'o', 'v') || startsWith(h, 4, 'm', 'd', 'a', 't')) return SambaFile.GROUP_VIDEO;
+        return 0;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    // 只读取文件开头，不读取整个文件
+    private static byte[] readHead(SmbFile file, long size) throws IOException {
+        int length = (int) Math.min(size, HEAD_SIZE);
+        byte[] head = new byte[length];
+        SmbRandomAccessFile raf = new SmbRandomAccessFile(file, "r");
+        try {
+            raf.readFully(head);
+        } finally {
+            raf.close();
+        }
+        return head;
+    }
+
+    // ICO：保留字段为 0，类型为 1，图像数 1-255，第一个目录项的保留字节为 0、位面数为 0 或 1，
+    // 图像数据位于目录之后
+    private static boolean isIcon(byte[] h) {
+        if (!startsWith(h, 0, 0x00, 0x00, 0x01, 0x00) || h.length < 22) return false;
+        int count = uint16(h, 4);
+        if (count == 0 || count > 255) return false;
+        if (h[9] != 0 || uint16(h, 10) > 1) return false;
+        long offset = uint16(h, 18) | ((long) uint16(h, 20) << 16);
+        return offset >= 6 + 16L * count;
+    }
+
+    // MPEG 音频帧头：11 位同步字，版本、层号、码率和采样率都不是保留值或自由码率，强调方式不是保留值
+    // 层号 00 是 AAC ADTS，由 isAdts 识别
+    private static boolean isMpegAudio(byte[] h) {
+        if (h.length < 4 || (h[0] & 0xFF) != 0xFF || (h[1] & 0xE0) != 0xE0) return false;
+        int version = (h[1] >> 3) & 0x03;
+        int layer = (h[1] >> 1) & 0x03;
+        int bitrate = (h[2] >> 4) & 0x0F;
+        int sampleRate = (h[2] >> 2) & 0x03;
+        int emphasis = h[3] & 0x03;
+        return version != 1 && layer != 0 && bitrate != 0 && bitrate != 0x0F && sampleRate != 3 && emphasis != 2;
+    }
+
+    // AAC ADTS 帧头：同步字后层号为 00，采样率序号 0-12，帧长不小于头长
+    private static boolean isAdts(byte[] h) {
+        if (h.length < 7 || (h[0] & 0xFF) != 0xFF || (h[1] & 0xF6) != 0xF0) return false;
+        int sampleRate = (h[2] >> 2) & 0x0F;
+        int headerLength = (h[1] & 0x01) != 0 ? 7 : 9;
+        int frameLength = ((h[3] & 0x03) << 11) | ((h[4] & 0xFF) << 3) | ((h[5] & 0xFF) >> 5);
+        return sampleRate <= 12 && frameLength >= headerLength;
+    }
+
+    // MPEG-TS：连续几个 188 字节包的开头都是同步字节 0x47
+    private static boolean isTransportStream(byte[] h) {
+        if (h.length <= (TS_PACKETS - 1) * TS_PACKET) return false;
+        for (int i = 0; i < TS_PACKETS; i++) {
+            if (h[i * TS_PACKET] != 0x47) return false;
+        }
+        return true;
+    }
+
+    private static int uint16(byte[] h, int offset) {
+        return (h[offset] & 0xFF) | ((h[offset + 1] & 0xFF) << 8);
+    }
+
+    private static boolean startsWith(byte[] h, int offset, int... magic) {
+        if (h.length < offset + magic.length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if ((h[offset + i] & 0xFF) != magic[i]) return false;
+        }
+        return true;
+    }
+
+}
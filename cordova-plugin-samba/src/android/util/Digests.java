@@ -0,0 +1,83 @@
+package net.cloudseat.smbova;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * MD5 摘要
+ * 用于比较文件内容，以及由路径生成不含特殊字符的缓存文件名
+ */
+public class Digests {
+
+    /**
+     * 新的 MD5 摘要对象
+     * @return MessageDigest
+     */
+    public static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 数据的 MD5
+     * @param byte[] bytes
+     * @param int offset
+     * @param int length
+     * @return byte[]
+     */
+    public static byte[] md5(byte[] bytes, int offset, int length) {
+        MessageDigest digest = md5();
+        digest.update(bytes, offset, length);
+        return digest.digest();
+    }
+
+    /**
+     * 文本（UTF-8）MD5 的十六进制形式
+     * @param String text
+     * @return String
+     */
+    public static String md5Hex(String text) {
+        try {
+            return hex(md5().digest(text.getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 读取整个流计算 MD5 的十六进制形式
+     * @param InputStream in 由调用者关闭
+     * @return String
+     */
+    public static String md5Hex(InputStream in) throws IOException {
+        MessageDigest digest = md5();
+        byte[] b = new byte[64 * 1024];
+        int len;
+        while ((len = in.read(b)) > 0) {
+            digest.update(b, 0, len);
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * 十六进制小写字符串
+     * @param byte[] bytes
+     * @return String
+     */
+    public static String hex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = digits[bytes[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+}
@@ -0,0 +1,134 @@
+package net.cloudseat.smbova;
+
+/**
+ * 流式 JSON 写入器
+ * 直接追加到 StringBuilder，不构建 org.json 对象树
+ */
+public class JsonStreamWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int MAX_DEPTH = 32;
+
+    private final StringBuilder out;
+    // 每一层是否已写入过元素（决定是否需要逗号）
+    private final boolean[] hasElement = new boolean[MAX_DEPTH];
+    private int depth = 0;
+    // 刚写完属性名，下一个值不需要逗号
+    private boolean afterName = false;
+
+    public JsonStreamWriter(int capacity) {
+        out = new StringBuilder(capacity);
+    }
+
+    public JsonStreamWriter beginObject() {
+        return open('{');
+    }
+
+    public JsonStreamWriter endObject() {
+        return close('}');
+    }
+
+    public JsonStreamWriter beginArray() {
+        return open('[');
+    }
+
+    public JsonStreamWriter endArray() {
+        return close(']');
+    }
+
+    /**
+     * 写入属性名
+     * @param String name
+     * @return JsonStreamWriter
+     */
+    public JsonStreamWriter name(String name) {
+        separate();
+        quote(name);
+        out.append(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonStreamWriter value(String value) {
+        separate();
+        if (value == null) {
+            out.append("null");
+        } else {
+            quote(value);
+        }
+        return this;
+    }
+
+    public JsonStreamWriter value(long value) {
+        separate();
+        out.append(value);
+        return this;
+    }
+
+    /**
+     * 已写入的 JSON 文本
+     * @return String
+     */
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private JsonStreamWriter open(char c) {
+        separate();
+        out.append(c);
+        hasElement[++depth] = false;
+        return this;
+    }
+
+    private JsonStreamWriter close(char c) {
+        out.append(c);
+        depth--;
+        return this;
+    }
+
+    // 同一层的第二个及之后的元素前写入逗号
+    private void separate() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (hasElement[depth]) {
+            out.append(',');
+        }
+        hasElement[depth] = true;
+    }
+
+    // 按 JSON 规范转义字符串，U+2028/U+2029 在 JS 字面量中非法，一并转义
+    private void quote(String s) {
+        out.append('"');
+        int length = s.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            out.append(s, start, i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    out.append("\\u")
+                        .append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf])
+                        .append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+            }
+            start = i + 1;
+        }
+        out.append(s, start, length);
+        out.append('"');
+    }
+
+}
@@ -0,0 +1,80 @@
+package net.cloudseat.smbova;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * 本地状态文件的读写
+ * 队列、日志、清单、签名缓存等小文件整体读入，保存时先写入临时文件再重命名，
+ * 中途失败时原文件不受影响
+ */
+public class LocalFiles {
+
+    /**
+     * 读取整个文件为 UTF-8 文本
+     * @param File file
+     * @return String
+     */
+    public static String readText(File file) throws IOException {
+        return new String(read(file), "UTF-8");
+    }
+
+    /**
+     * 读取整个文件
+     * @param File file
+     * @return byte[]
+     */
+    public static byte[] read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0, len;
+            while (offset < bytes.length && (len = in.read(bytes, offset, bytes.length - offset)) > 0) {
+                offset += len;
+            }
+            if (offset < bytes.length) {
+                byte[] read = new byte[offset];
+                System.arraycopy(bytes, 0, read, 0, offset);
+                return read;
+            }
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 以 UTF-8 写入文本，先写临时文件再重命名
+     * @param File file
+     * @param String text
+     * @param boolean sync 重命名前是否刷新到磁盘，频繁写入的文件可以不刷新
+     */
+    public static void writeText(File file, String text, boolean sync) throws IOException {
+        write(file, text.getBytes("UTF-8"), sync);
+    }
+
+    /**
+     * 写入数据，先写临时文件再重命名，目录不存在时创建
+     * @param File file
+     * @param byte[] data
+     * @param boolean sync
+     */
+    public static void write(File file, byte[] data, boolean sync) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null) parent.mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            if (sync) out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot write " + file);
+        }
+    }
+
+}
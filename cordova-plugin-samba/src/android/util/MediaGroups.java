@@ -0,0 +1,153 @@
+package net.cloudseat.smbova;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 文件后缀与类型组的索引
+ * 预先构建的不可变开放寻址哈希表，查询时直接对文件名中的后缀区间计算哈希，
+ * 不截取子串、不转小写，不产生任何对象；注册新后缀时整体重建并替换
+ */
+public class MediaGroups {
+
+    // 类型组名称 -> 编号
+    private static final Map<String, Integer> names = new LinkedHashMap<String, Integer>();
+    // 后缀 -> 类型组编号
+    private static final Map<String, Integer> extensions = new HashMap<String, Integer>();
+    private static volatile Index index;
+
+    static {
+        names.put("image", SambaFile.GROUP_IMAGE);
+        names.put("audio", SambaFile.GROUP_AUDIO);
+        names.put("video", SambaFile.GROUP_VIDEO);
+        put(SambaFile.GROUP_IMAGE, "bmp,cur,eps,gif,ico,jpe,jpg,jpeg,jpz,png,svg,tif,tiff");
+        put(SambaFile.GROUP_AUDIO, "aac,aiff,ape,caf,flac,m3u,m4a,mp3,ogg,wav,wma");
+        put(SambaFile.GROUP_VIDEO, "3gp,asf,avi,flv,m3u8,m4u,m4v,mkv,mov,mp4,mpa,mpe,mpeg,mpg,ogm,rm,rmvb,vob,webm,wmv");
+        index = new Index(extensions);
+    }
+
+    /**
+     * 根据后缀获取类型组
+     * @param String ext 不含'.'，大小写不敏感
+     * @return int 未知后缀返回 0
+     */
+    public static int lookup(String ext) {
+        return index.get(ext, 0, ext.length());
+    }
+
+    /**
+     * 根据文件名获取类型组，直接使用最后一个'.'之后的区间
+     * @param String name
+     * @return int 无后缀或未知后缀返回 0
+     */
+    public static int lookupName(String name) {
+        int end = name.endsWith("/") ? name.length() - 1 : name.length();
+        int dot = name.lastIndexOf('.', end - 1);
+        return dot > -1 ? index.get(name, dot + 1, end) : 0;
+    }
+
+    /**
+     * 注册类型组及后缀，已存在的后缀会被移到新组
+     * @param String group 组名，未知组名会分配新的编号
+     * @param JSONArray exts
+     * @return int 组编号
+     */
+    public static synchronized int register(String group, JSONArray exts) throws JSONException {
+        String name = group.toLowerCase(Locale.ROOT);
+        Integer id = names.get(name);
+        if (id == null) {
+            id = 0;
+            for (int value : names.values()) id = Math.max(id, value);
+            id++;
+            names.put(name, id);
+        }
+        for (int i = 0; i < exts.length(); i++) {
+            String ext = exts.getString(i).trim().toLowerCase(Locale.ROOT);
+            if (ext.startsWith(".")) ext = ext.substring(1);
+            if (!ext.isEmpty()) extensions.put(ext, id);
+        }
+        index = new Index(extensions);
+        return id;
+    }
+
+    /**
+     * 所有类型组及其后缀
+     * @return JSONObject {name: {id, extensions: []}}
+     */
+    public static synchronized JSONObject toJSON() throws JSONException {
+        JSONObject result = new JSONObject();
+        for (Map.Entry<String, Integer> group : names.entrySet()) {
+            JSONArray exts = new JSONArray();
+            for (Map.Entry<String, Integer> ext : extensions.entrySet()) {
+                if (ext.getValue().equals(group.getValue())) exts.put(ext.getKey());
+            }
+            JSONObject item = new JSONObject();
+            item.put("id", group.getValue());
+            item.put("extensions", exts);
+            result.put(group.getKey(), item);
+        }
+        return result;
+    }
+
+    private static void put(int group, String exts) {
+        for (String ext : exts.split(",")) {
+            extensions.put(ext, group);
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 不可变的开放寻址（线性探测）哈希表，键为小写后缀
+     */
+    private static class Index {
+
+        private final String[] keys;
+        private final int[] groups;
+        private final int mask;
+
+        public Index(Map<String, Integer> map) {
+            // 装载因子不超过 0.5
+            int capacity = Integer.highestOneBit(Math.max(map.size(), 1) * 4 - 1);
+            keys = new String[capacity];
+            groups = new int[capacity];
+            mask = capacity - 1;
+            for (Map.Entry<String, Integer> entry : map.entrySet()) {
+                String key = entry.getKey();
+                int i = hash(key, 0, key.length()) & mask;
+                while (keys[i] != null) i = (i + 1) & mask;
+                keys[i] = key;
+                groups[i] = entry.getValue();
+            }
+        }
+
+        public int get(String s, int from, int to) {
+            int length = to - from;
+            if (length <= 0) return 0;
+            for (int i = hash(s, from, to) & mask; ; i = (i + 1) & mask) {
+                String key = keys[i];
+                if (key == null) return 0;
+                if (key.length() == length && key.regionMatches(true, 0, s, from, length)) {
+                    return groups[i];
+                }
+            }
+        }
+
+        private static int hash(String s, int from, int to) {
+            int h = 0;
+            for (int i = from; i < to; i++) {
+                h = 31 * h + Character.toLowerCase(s.charAt(i));
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+
+}
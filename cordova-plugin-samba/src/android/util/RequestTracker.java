@@ -0,0 +1,166 @@
+package net.cloudseat.smbova;
+
+import org.apache.cordova.CallbackContext;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 可取消的请求
+ * JS 为一次调用指定请求编号（和可选的视图）时，插件在 execute 中登记请求，
+ * 调度器把提交的任务和执行它的线程绑定到请求上；
+ * 取消时尚未开始的任务直接丢弃，正在执行的任务中断其线程：jcifs 等待响应时收到中断即抛出异常，
+ * 共用的连接不会断开，已打开的文件由各操作的 finally 关闭；回调立即以 "Cancelled" 结束
+ * 同一视图的新请求到达时，该视图上尚未结束的请求自动取消，例如快速切换目录时的旧列表
+ */
+public class RequestTracker {
+
+    public static final String CANCELLED = "Cancelled";
+
+    // 正在 execute 中提交任务的请求
+    private static final ThreadLocal<Request> submitting = new ThreadLocal<Request>();
+
+    private final ConcurrentHashMap<String, Request> requests = new ConcurrentHashMap<String, Request>();
+    private final ConcurrentHashMap<String, Request> views = new ConcurrentHashMap<String, Request>();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+
+    /**
+     * 登记请求并开始提交，同一视图上尚未结束的请求被取消
+     * @param String id 可为空
+     * @param String view 可为空
+     * @param CallbackContext callback
+     * @return Request
+     */
+    public Request begin(String id, String view, CallbackContext callback) {
+        Request request = new Request(id, view, callback);
+        if (id != null) {
+            requests.put(id, request);
+        }
+        if (view != null) {
+            Request previous = views.put(view, request);
+            if (previous != null && previous.cancel()) {
+                superseded.incrementAndGet();
+            }
+        }
+        submitting.set(request);
+        return request;
+    }
+
+    /**
+     * 提交结束，没有提交任务的请求（同步完成的操作）随即结束
+     * @param Request request
+     */
+    public void endSubmit(Request request) {
+        submitting.remove();
+        if (!request.queued) request.finish();
+    }
+
+    /**
+     * 当前线程正在提交的请求，由调度器在提交任务时调用
+     * @return Request 不在请求中时返回 null
+     */
+    public static Request submitting() {
+        return submitting.get();
+    }
+
+    /**
+     * 取消请求
+     * @param String id
+     * @return boolean 请求不存在或已结束时返回 false
+     */
+    public boolean cancel(String id) {
+        Request request = requests.get(id);
+        if (request != null && request.cancel()) {
+            cancelled.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 未结束的请求数及取消次数
+     * @return JSONObject {pending, cancelled, superseded}
+     */
+    public JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("pending", requests.size());
+        stats.put("cancelled", cancelled.get());
+        stats.put("superseded", superseded.get());
+        return stats;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 公共类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 一次请求
+     */
+    public class Request {
+
+        private final String id;
+        private final String view;
+        private final CallbackContext callback;
+        private Thread thread;
+        private boolean cancelled = false;
+        private boolean finished = false;
+        // 已提交任务，由任务结束时结束请求
+        private volatile boolean queued = false;
+
+        private Request(String id, String view, CallbackContext callback) {
+            this.id = id;
+            this.view = view;
+            this.callback = callback;
+        }
+
+        /**
+         * 调度器提交任务时调用
+         */
+        public void queue() {
+            queued = true;
+        }
+
+        /**
+         * 任务开始执行时绑定当前线程
+         * @return boolean 已取消时返回 false，任务不再执行
+         */
+        public synchronized boolean start() {
+            if (cancelled) return false;
+            thread = Thread.currentThread();
+            return true;
+        }
+
+        /**
+         * 任务结束或取消后移除请求，不再中断线程
+         */
+        public void finish() {
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
+                thread = null;
+            }
+            if (id != null) requests.remove(id, this);
+            if (view != null) views.remove(view, this);
+        }
+
+        // 中断正在执行的线程并结束回调
+        private boolean cancel() {
+            synchronized (this) {
+                if (finished || cancelled) return false;
+                cancelled = true;
+                if (thread != null) thread.interrupt();
+            }
+            if (!callback.isFinished()) {
+                callback.error(CANCELLED);
+            }
+            // 未开始的任务执行时直接跳过，正在执行的任务结束时移除
+            if (!queued) finish();
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,249 @@
+package net.cloudseat.smbova;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 插件操作的调度器
+ * 分为两条通道，各自有独立的线程和队列：
+ * 交互通道用于用户正在等待的操作（列目录、查询属性、小范围读取、打开文件），
+ * 后台通道用于批量传输、目录树遍历和建立索引，线程优先级较低；
+ * 后台任务再多也不会占用交互通道的线程
+ * 批量操作内部的并发（多连接下载、目录树传输、并发列目录等）通过 WorkerGroup 使用共用的工作线程，
+ * 工作线程总数为后台通道并发数的 WORKERS_PER_THREAD 倍，调整后台通道并发数即限制了对服务器的总并发
+ * 在请求中提交的任务绑定到该请求，取消时跳过或中断
+ */
+public class SambaExecutor {
+
+    public static final int DEFAULT_INTERACTIVE = 4;
+    public static final int DEFAULT_BACKGROUND = 2;
+    private static final int MAX_PARALLELISM = 16;
+    // 空闲线程保留时间
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    // 相当于 Android 的 THREAD_PRIORITY_BACKGROUND
+    private static final int BACKGROUND_PRIORITY = Thread.NORM_PRIORITY - 2;
+    // 后台通道每个线程对应的工作线程数
+    private static final int WORKERS_PER_THREAD = 4;
+
+    // 所有批量操作共用，不排队：没有空闲线程且已达上限时由 WorkerGroup 的调用线程执行
+    private static final ThreadPoolExecutor workers = new ThreadPoolExecutor(0,
+        DEFAULT_BACKGROUND * WORKERS_PER_THREAD, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), threadFactory("worker", BACKGROUND_PRIORITY));
+
+    private final Lane interactive = new Lane("interactive", DEFAULT_INTERACTIVE, Thread.NORM_PRIORITY);
+    private final Lane background = new Lane("background", DEFAULT_BACKGROUND, BACKGROUND_PRIORITY);
+
+    /**
+     * 在交互通道执行
+     * @param Runnable task
+     */
+    public void interactive(Runnable task) {
+        interactive.execute(task);
+    }
+
+    /**
+     * 在后台通道执行
+     * @param Runnable task
+     */
+    public void background(Runnable task) {
+        background.execute(task);
+    }
+
+    /**
+     * 在后台通道执行，不绑定正在提交的请求，用于由队列自行调度的任务
+     * @return Executor
+     */
+    public Executor detachedBackground() {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                background.execute(task, null);
+            }
+        };
+    }
+
+    /**
+     * 在共用的工作线程中执行，由 WorkerGroup 调用
+     * @param Runnable task
+     * @return boolean 没有空闲线程且已达上限时返回 false
+     */
+    static boolean worker(Runnable task) {
+        try {
+            workers.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 设置各通道的并发数，工作线程数随后台通道调整，已排队的任务不受影响
+     * @param int interactiveThreads
+     * @param int backgroundThreads
+     */
+    public void configure(int interactiveThreads, int backgroundThreads) {
+        interactive.setParallelism(interactiveThreads);
+        background.setParallelism(backgroundThreads);
+        workers.setMaximumPoolSize(background.executor.getMaximumPoolSize() * WORKERS_PER_THREAD);
+    }
+
+    /**
+     * 各通道的并发数、队列长度和等待时间，以及工作线程数
+     * @return JSONObject {interactive: {...}, background: {...}, workers: {limit, active}}
+     */
+    public JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("interactive", interactive.toJSON());
+        stats.put("background", background.toJSON());
+        JSONObject worker = new JSONObject();
+        worker.put("limit", workers.getMaximumPoolSize());
+        worker.put("active", workers.getActiveCount());
+        stats.put("workers", worker);
+        return stats;
+    }
+
+    /**
+     * 停止接收新任务，共用的工作线程空闲后自行结束
+     */
+    public void shutdown() {
+        interactive.executor.shutdown();
+        background.executor.shutdown();
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private static ThreadFactory threadFactory(final String name, final int priority) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "smb-" + name + "-" + count.incrementAndGet());
+                thread.setPriority(priority);
+                return thread;
+            }
+        };
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 一条通道
+     */
+    private static class Lane {
+
+        private final ThreadPoolExecutor executor;
+        private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong started = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong waitTime = new AtomicLong();
+        private final AtomicLong maxWait = new AtomicLong();
+        private final AtomicLong runTime = new AtomicLong();
+
+        public Lane(String name, int parallelism, int priority) {
+            this.executor = new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                queue, threadFactory(name, priority));
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        public void execute(Runnable task) {
+            execute(task, RequestTracker.submitting());
+        }
+
+        public void execute(Runnable task, RequestTracker.Request request) {
+            submitted.incrementAndGet();
+            executor.execute(new Task(task, request));
+        }
+
+        // 增大时先调整最大值，减小时先调整核心数，否则会抛出异常
+        public synchronized void setParallelism(int parallelism) {
+            parallelism = Math.min(Math.max(parallelism, 1), MAX_PARALLELISM);
+            if (parallelism > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(parallelism);
+                executor.setCorePoolSize(parallelism);
+            } else {
+                executor.setCorePoolSize(parallelism);
+                executor.setMaximumPoolSize(parallelism);
+            }
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            long begun = started.get();
+            long done = completed.get();
+            Task head = (Task) queue.peek();
+            JSONObject json = new JSONObject();
+            json.put("parallelism", executor.getMaximumPoolSize());
+            json.put("active", executor.getActiveCount());
+            json.put("queued", queue.size());
+            json.put("submitted", submitted.get());
+            json.put("completed", done);
+            // 毫秒
+            json.put("waitAvg", begun > 0 ? waitTime.get() / begun / 1000000 : 0);
+            json.put("waitMax", maxWait.get() / 1000000);
+            json.put("runAvg", done > 0 ? runTime.get() / done / 1000000 : 0);
+            json.put("oldestQueued", head != null ? (System.nanoTime() - head.queuedAt) / 1000000 : 0);
+            return json;
+        }
+
+        /**
+         * 记录排队和执行时间的任务
+         */
+        private class Task implements Runnable {
+
+            private final Runnable task;
+            private final long queuedAt = System.nanoTime();
+            private final RequestTracker.Request request;
+
+            public Task(Runnable task, RequestTracker.Request request) {
+                this.task = task;
+                this.request = request;
+                if (request != null) request.queue();
+            }
+
+            @Override
+            public void run() {
+                if (request != null && !request.start()) {
+                    // 排队期间已取消
+                    request.finish();
+                    return;
+                }
+                long startTime = System.nanoTime();
+                long wait = startTime - queuedAt;
+                waitTime.addAndGet(wait);
+                started.incrementAndGet();
+                long max;
+                while (wait > (max = maxWait.get()) && !maxWait.compareAndSet(max, wait)) {
+                    // 重试
+                }
+                try {
+                    task.run();
+                } finally {
+                    runTime.addAndGet(System.nanoTime() - startTime);
+                    completed.incrementAndGet();
+                    if (request != null) {
+                        request.finish();
+                        // 清除取消时设置的中断状态，线程继续执行其他任务
+                        Thread.interrupted();
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+package net.cloudseat.smbova;
+
+import jcifs.UniAddress;
+import jcifs.smb.NtlmPasswordAuthentication;
+import jcifs.smb.SmbFile;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * 按服务器管理认证和会话
+ * 每台服务器可以有各自的用户名和密码，未单独设置的服务器使用默认认证
+ * jcifs 按服务器地址和认证复用连接与会话，连接空闲超过 soTimeout（默认 35 秒）后断开，
+ * 之后的第一个操作要重新解析名称、建立 TCP 连接、协商和建立会话；
+ * 此处在服务器最近被使用过（idleTimeout 以内）且空闲接近 soTimeout 时向最近使用的共享发送一次查询，
+ * 使连接保持可用，超过 idleTimeout 后不再保持，由 jcifs 自行断开
+ */
+public class SessionManager {
+
+    // 小于 jcifs 默认的 soTimeout
+    private static final long KEEPALIVE_INTERVAL = 25 * 1000;
+    public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+    private static final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+    private static volatile NtlmPasswordAuthentication defaultAuth;
+    private static volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private static volatile ScheduledExecutorService keepalive;
+
+    /**
+     * 设置认证
+     * @param String host 服务器名，为空时设置默认认证
+     * @param String username 空字符串表示匿名登录；为 null 时取消认证，单独设置的服务器改用默认认证
+     * @param String password 可以为空
+     */
+    public static void setPrincipal(String host, String username, String password) {
+        NtlmPasswordAuthentication auth = null;
+        if (username != null && !username.isEmpty()) {
+            auth = new NtlmPasswordAuthentication(null, username, password != null ? password : "");
+        } else if (username != null && host != null && !host.isEmpty()) {
+            // 明确记录匿名，否则会退回默认认证
+            auth = NtlmPasswordAuthentication.ANONYMOUS;
+        }
+        if (host == null || host.isEmpty()) {
+            defaultAuth = auth;
+        } else {
+            host(host.toLowerCase(Locale.ROOT)).auth = auth;
+        }
+    }
+
+    /**
+     * 路径所在服务器的认证，并记录服务器和共享最近被使用
+     * @param String path smb://[user@]host[:port]/share/...
+     * @return NtlmPasswordAuthentication 未设置时返回 null
+     */
+    public static NtlmPasswordAuthentication authFor(String path) {
+        String host = SmbUrl.host(path);
+        if (host == null) return defaultAuth;
+        Host item = host(host);
+        item.lastUsed = System.currentTimeMillis();
+        String share = SmbUrl.share(path);
+        if (share != null) item.share = share;
+        return item.auth != null ? item.auth : defaultAuth;
+    }
+
+    /**
+     * 预先连接服务器：解析名称、建立连接和会话，指定共享时同时连接共享
+     * @param String host
+     * @param String share 可为空
+     * @return JSONObject {host, share, resolve, connect, total} 耗时为毫秒
+     */
+    public static JSONObject connect(String host, String share) throws IOException, JSONException {
+        host = host.toLowerCase(Locale.ROOT);
+        Host item = host(host);
+        item.lastUsed = System.currentTimeMillis();
+        if (share != null && !share.isEmpty()) item.share = share;
+
+        long startTime = System.nanoTime();
+        UniAddress.getByName(host);
+        long resolved = System.nanoTime();
+        String path = "smb://" + host + "/" + (share != null && !share.isEmpty() ? share + "/" : "");
+        new SmbFile(path, item.auth != null ? item.auth : defaultAuth).connect();
+        long connected = System.nanoTime();
+
+        item.resolveTime = (resolved - startTime) / 1000000;
+        item.connectTime = (connected - resolved) / 1000000;
+        item.connectedAt = System.currentTimeMillis();
+        return item.toJSON();
+    }
+
+    /**
+     * 设置空闲超时，为 0 时不保持连接
+     * @param long millis
+     */
+    public static void setIdleTimeout(long millis) {
+        idleTimeout = Math.max(millis, 0);
+    }
+
+    /**
+     * 停止保持连接，插件销毁时调用；之后再使用服务器时重新开始
+     */
+    public static synchronized void shutdown() {
+        if (keepalive != null) {
+            keepalive.shutdownNow();
+            keepalive = null;
+        }
+    }
+
+    /**
+     * 所有服务器的会话状态
+     * @return JSONObject {idleTimeout, hosts: [{host, share, user, resolve, connect, connectedAt, lastUsed, keepalives, failures}]}
+     */
+    public static JSONObject getStats() throws JSONException {
+        JSONArray list = new JSONArray();
+        for (Host item : hosts.values()) {
+            list.put(item.toJSON());
+        }
+        JSONObject stats = new JSONObject();
+        stats.put("idleTimeout", idleTimeout);
+        stats.put("hosts", list);
+        return stats;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    private static Host host(String host) {
+        Host item = hosts.get(host);
+        if (item == null) {
+            Host created = new Host(host);
+            item = hosts.putIfAbsent(host, created);
+            if (item == null) item = created;
+        }
+        // 插件销毁后再次使用时重新开始
+        if (keepalive == null) startKeepalive();
+        return item;
+    }
+
+    private static synchronized void startKeepalive() {
+        if (keepalive != null) return;
+        keepalive = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "smb-keepalive");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        keepalive.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (Host item : hosts.values()) {
+                    if (item.share != null && now - item.lastUsed < idleTimeout
+                        && now - Math.max(item.lastUsed, item.lastKeepalive) >= KEEPALIVE_INTERVAL) {
+                        item.keepalive(now);
+                    }
+                }
+            }
+        }, KEEPALIVE_INTERVAL, KEEPALIVE_INTERVAL / 5, TimeUnit.MILLISECONDS);
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有类
+    ///////////////////////////////////////////////////////
+
+    /**
+     * 一台服务器的认证和会话状态
+     */
+    private static class Host {
+
+        private final String name;
+        private volatile NtlmPasswordAuthentication auth;
+        // 最近使用的共享，保持连接时查询它
+        private volatile String share;
+        private volatile long lastUsed;
+        private volatile long lastKeepalive;
+        private volatile long connectedAt;
+        private volatile long resolveTime = -1;
+        private volatile long connectTime = -1;
+        // 由保持连接的线程更新
+        private final AtomicInteger keepalives = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+
+        public Host(String name) {
+            this.name = name;
+        }
+
+        // 不经过 SambaFile，避免把保持连接计为使用
+        public void keepalive(long now) {
+            lastKeepalive = now;
+            try {
+                NtlmPasswordAuthentication credentials = auth != null ? auth : defaultAuth;
+                new SmbFile("smb://" + name + "/" + share + "/", credentials).exists();
+                keepalives.incrementAndGet();
+            } catch (IOException e) {
+                failures.incrementAndGet();
+            }
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            NtlmPasswordAuthentication credentials = auth;
+            JSONObject json = new JSONObject();
+            json.put("host", name);
+            json.put("share", share);
+            json.put("user", credentials != null ? credentials.getUsername() : null);
+            json.put("resolve", resolveTime);
+            json.put("connect", connectTime);
+            json.put("total", resolveTime < 0 ? -1 : resolveTime + connectTime);
+            json.put("connectedAt", connectedAt);
+            json.put("lastUsed", lastUsed);
+            json.put("keepalives", keepalives.get());
+            json.put("failures", failures.get());
+            return json;
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+package net.cloudseat.smbova;
+
+import java.util.Locale;
+
+/**
+ * smb:// 路径的解析
+ * 按服务器区分认证、传输并发和缓冲区大小时都以此取得服务器名
+ */
+public class SmbUrl {
+
+    /**
+     * smb://[domain;user:password@]host[:port]/share/path 中的 host，小写
+     * @param String path
+     * @return String 不是 smb:// 路径时返回 null
+     */
+    public static String host(String path) {
+        if (path == null || !path.regionMatches(true, 0, "smb://", 0, 6)) return null;
+        int end = path.indexOf('/', 6);
+        if (end < 0) end = path.length();
+        int start = path.lastIndexOf('@', end - 1);
+        start = start < 6 ? 6 : start + 1;
+        int port = path.indexOf(':', start);
+        if (port > -1 && port < end) end = port;
+        return end > start ? path.substring(start, end).toLowerCase(Locale.ROOT) : null;
+    }
+
+    /**
+     * 路径中的共享名
+     * @param String path
+     * @return String 没有共享名时返回 null
+     */
+    public static String share(String path) {
+        if (host(path) == null) return null;
+        int start = path.indexOf('/', 6);
+        if (start < 0) return null;
+        int end = path.indexOf('/', start + 1);
+        if (end < 0) end = path.length();
+        return end > start + 1 ? path.substring(start + 1, end) : null;
+    }
+
+}
@@ -0,0 +1,171 @@
+package net.cloudseat.smbova;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 一次批量操作内部的并发任务
+ * 任务先放入本组的队列，由 SambaExecutor 的共用工作线程取出执行，工作线程总数随后台通道的并发数调整，
+ * 一组最多同时占用 limit - 1 个工作线程；等待的调用线程也执行本组排队的任务，
+ * 工作线程用尽时退化为在调用线程中逐个执行，嵌套的批量操作不会因等待线程而互相阻塞
+ * 取消时丢弃排队的任务，中断本组正在执行任务的工作线程
+ */
+public class WorkerGroup {
+
+    private final int limit;
+    private final LinkedList<Runnable> queue = new LinkedList<Runnable>();
+    // 本组正在执行任务的工作线程，不含调用线程
+    private final Set<Thread> threads = new HashSet<Thread>();
+    private int attached = 0;
+    private int active = 0;
+    private boolean cancelled = false;
+
+    /**
+     * @param int limit 同时执行的任务数，含等待的调用线程
+     */
+    public WorkerGroup(int limit) {
+        this.limit = Math.max(limit, 1);
+    }
+
+    /**
+     * 提交任务，取消后提交的任务被丢弃
+     * @param Runnable task
+     */
+    public void execute(Runnable task) {
+        synchronized (this) {
+            if (cancelled) {
+                discard(task);
+                return;
+            }
+            queue.add(task);
+            notifyAll();
+            if (attached >= limit - 1) return;
+            attached++;
+        }
+        if (!SambaExecutor.worker(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        })) {
+            // 没有空闲的工作线程，由调用线程执行
+            synchronized (this) {
+                attached--;
+            }
+        }
+    }
+
+    /**
+     * 提交有返回值的任务
+     * @param Callable<T> task
+     * @return Future<T> 任务被取消时 get 抛出 CancellationException
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        execute(future);
+        return future;
+    }
+
+    /**
+     * 在调用线程中执行排队的任务，直到本组的任务全部结束
+     */
+    public void await() throws InterruptedException {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                while (queue.isEmpty() && active > 0) {
+                    wait();
+                }
+                if (queue.isEmpty()) return;
+                task = queue.poll();
+                active++;
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    active--;
+                    notifyAll();
+                }
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * 丢弃排队的任务并中断本组正在执行任务的工作线程
+     */
+    public void cancel() {
+        List<Runnable> dropped;
+        synchronized (this) {
+            cancelled = true;
+            dropped = new ArrayList<Runnable>(queue);
+            queue.clear();
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            notifyAll();
+        }
+        for (Runnable task : dropped) {
+            discard(task);
+        }
+    }
+
+    /**
+     * 是否已取消
+     * @return boolean
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    ///////////////////////////////////////////////////////
+    // 私有方法
+    ///////////////////////////////////////////////////////
+
+    // 在工作线程中取出本组的任务执行，队列空时把线程还给共用线程池
+    private void drain() {
+        Thread thread = Thread.currentThread();
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = queue.poll();
+                if (task == null) {
+                    attached--;
+                    return;
+                }
+                active++;
+                threads.add(thread);
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // 任务自行处理异常，此处只保证计数正确
+            } finally {
+                synchronized (this) {
+                    threads.remove(thread);
+                    active--;
+                    notifyAll();
+                }
+                // 清除取消时设置的中断状态，线程继续执行其他任务
+                Thread.interrupted();
+            }
+        }
+    }
+
+    // 未执行的任务如有 Future 则取消，避免等待它的线程一直阻塞
+    private static void discard(Runnable task) {
+        if (task instanceof Future) {
+            ((Future<?>) task).cancel(false);
+        }
+    }
+
+}
@@ -1,16 +1,157 @@
-const exec = require('cordova/exec')
+const cordovaExec = require('cordova/exec')
+
+// 由 samba.request() 设置，本次调用附带请求编号和视图
+let currentRequest = null
+let requestIds = 0
+
+function exec(success, error, service, action, args) {
+  if (currentRequest) {
+    args = (args || []).concat([ { __request: currentRequest } ])
+  }
+  cordovaExec(success, error, service, action, args)
+}
+
+// 进度事件交给本次调用的 onProgress，未指定时交给全局的 samba.onProgress(progress, event)
+// 目录传输中单个文件的进度带有 path，文件结束事件交给 onFile
+function transferCallback(options, success) {
+  return function(result) {
+    if (result && result.type === 'progress') {
+      if (options && options.onProgress) {
+        options.onProgress(result)
+      } else if (module.exports.onProgress && !result.path) {
+        module.exports.onProgress(result.total ? result.loaded / result.total : 1, result)
+      }
+    } else if (result && result.type === 'file') {
+      if (options && options.onFile) options.onFile(result)
+    } else if (success) {
+      success(result)
+    }
+  }
+}
+
+// 紧凑格式的目录列表以 JSON 文本发送，在这里解析
+function listingCallback(success) {
+  return function(result) {
+    if (success) success(typeof result === 'string' ? JSON.parse(result) : result)
+  }
+}
+
+// 函数不能传给原生层
+function transferOptions(options) {
+  if (!options) return null
+  const result = {}
+  for (const key in options) {
+    if (typeof options[key] !== 'function') result[key] = options[key]
+  }
+  return result
+}
 module.exports = {
 
+  // 返回带有相同方法的对象，通过它发起的调用可以用 cancel(id) 取消；
+  // 指定 view 时，同一视图的新请求会取消该视图上尚未结束的请求
+  request(options) {
+    if (typeof options === 'string') options = { id: options }
+    const request = {
+      id: (options && options.id) || 'request-' + (++requestIds),
+      view: options && options.view
+    }
+    const api = { id: request.id }
+    for (const key in module.exports) {
+      const method = module.exports[key]
+      if (typeof method !== 'function' || key === 'request' || key === 'cancel') continue
+      api[key] = function() {
+        currentRequest = request
+        try {
+          return method.apply(module.exports, arguments)
+        } finally {
+          currentRequest = null
+        }
+      }
+    }
+    return api
+  },
+
+  cancel(id, success, error) {
+    exec(success, error, 'SambaPlugin', 'cancel', [ id ])
+  },
+
   runBackground(success, error) {
     exec(success, error, 'SambaPlugin', 'runBackground', null)
   },
 
-  auth(username, password, success, error) {
-    exec(success, error, 'SambaPlugin', 'auth', [ username, password ])
+  auth(username, password, options, success, error) {
+    if (typeof options === 'function') {
+      error = success
+      success = options
+      options = null
+    }
+    exec(success, error, 'SambaPlugin', 'auth', [ username, password, options ])
   },
 
-  listEntries(path, success, error) {
-    exec(success, error, 'SambaPlugin', 'listEntries', [ path ])
+  executorStats(success, error) {
+    exec(success, error, 'SambaPlugin', 'executorStats', null)
+  },
+
+  configureExecutor(options, success, error) {
+    exec(success, error, 'SambaPlugin', 'configureExecutor', [ options ])
+  },
+
+  sessionStats(success, error) {
+    exec(success, error, 'SambaPlugin', 'sessionStats', null)
+  },
+
+  configureSessions(options, success, error) {
+    exec(success, error, 'SambaPlugin', 'configureSessions', [ options ])
+  },
+
+  listEntries(path, options, success, error) {
+    if (typeof options === 'function') {
+      error = success
+      success = options
+      options = null
+    }
+    // 同一视图的新列表取消旧列表
+    if (options && options.view && !currentRequest) {
+      return module.exports.request({ view: options.view }).listEntries(path, options, success, error)
+    }
+    exec(listingCallback(success), error, 'SambaPlugin', 'listEntries', [ path, options ])
+  },
+
+  // 匹配结果分批交给 onMatches(entries, event)，返回可传给 cancelSearch 的编号
+  search(root, pattern, options, onMatches, success, error) {
+    if (typeof options === 'function') {
+      error = success
+      success = onMatches
+      onMatches = options
+      options = null
+    }
+    options = Object.assign({}, options)
+    if (!options.id) options.id = 'search-' + Date.now() + '-' + Math.floor(Math.random() * 1000)
+    exec(function(result) {
+      if (result && result.type === 'matches') {
+        if (onMatches) onMatches(result.entries, result)
+      } else if (success) {
+        success(result)
+      }
+    }, error, 'SambaPlugin', 'search', [ root, pattern, options ])
+    return options.id
+  },
+
+  cancelSearch(id, success, error) {
+    exec(success, error, 'SambaPlugin', 'cancel', [ id ])
+  },
+
+  indexShare(root, options, success, error) {
+    if (typeof options === 'function') {
+      error = success
+      success = options
+      options = null
+    }
+    exec(success, error, 'SambaPlugin', 'indexShare', [ root, options ])
+  },
+
+  removeIndex(root, success, error) {
+    exec(success, error, 'SambaPlugin', 'removeIndex', [ root ])
   },
 
   readAsText(path, success, error) {
@@ -21,8 +162,45 @@ module.exports = {
     exec(success, error, 'SambaPlugin', 'readAsByteArray', [ path ])
   },
 
-  openImage(path, success, error) {
-    exec(success, error, 'SambaPlugin', 'openImage', [ path ])
+  readRange(path, offset, length, success, error) {
+    exec(success, error, 'SambaPlugin', 'readRange', [ path, offset, length ])
+  },
+
+  readChunks(path, options, onChunk, success, error) {
+    let offset = (options && options.offset) || 0
+    exec(function(result) {
+      if (result instanceof ArrayBuffer) {
+        onChunk(result, offset)
+        offset += result.byteLength
+      } else if (success) {
+        success(result)
+      }
+    }, error, 'SambaPlugin', 'readChunks', [ path, options ])
+  },
+
+  openText(path, success, error) {
+    exec(success, error, 'SambaPlugin', 'openText', [ path ])
+  },
+
+  readLines(path, start, count, success, error) {
+    exec(success, error, 'SambaPlugin', 'readLines', [ path, start, count ])
+  },
+
+  headText(path, count, success, error) {
+    exec(success, error, 'SambaPlugin', 'headText', [ path, count ])
+  },
+
+  tailText(path, count, success, error) {
+    exec(success, error, 'SambaPlugin', 'tailText', [ path, count ])
+  },
+
+  openImage(path, filter, success, error) {
+    if (typeof filter === 'function') {
+      error = success
+      success = filter
+      filter = null
+    }
+    exec(success, error, 'SambaPlugin', 'openImage', [ path, filter ])
   },
 
   openMedia(path, success, error) {
@@ -33,12 +211,81 @@ module.exports = {
     exec(success, error, 'SambaPlugin', 'openFile', [ path ])
   },
 
-  upload(localPath, smbPath, success, error) {
-    exec(success, error, 'SambaPlugin', 'upload', [ localPath, smbPath ])
+  upload(localPath, smbPath, options, success, error) {
+    if (typeof options === 'function') {
+      error = success
+      success = options
+      options = null
+    }
+    exec(transferCallback(options, success), error, 'SambaPlugin', 'upload', [ localPath, smbPath, transferOptions(options) ])
+  },
+
+  download(smbPath, options, success, error) {
+    if (typeof options === 'function') {
+      error = success
+      success = options
+      options = null
+    }
+    exec(transferCallback(options, success), error, 'SambaPlugin', 'download', [ smbPath, transferOptions(options) ])
+  },
+
+  uploadTree(localPath, smbPath, options, success, error) {
+    if (typeof options === 'function') {
+      error = success
+      success = options
+      options = null
+    }
+    exec(transferCallback(options, success), error, 'SambaPlugin', 'uploadTree', [ localPath, smbPath, transferOptions(options) ])
+  },
+
+  downloadTree(smbPath, options, success, error) {
+    if (typeof options === 'function') {
+      error = success
+      success = options
+      options = null
+    }
+    exec(transferCallback(options, success), error, 'SambaPlugin', 'downloadTree', [ smbPath, transferOptions(options) ])
+  },
+
+  syncFolder(localPath, smbPath, options, success, error) {
+    if (typeof options === 'function') {
+      error = success
+      success = options
+      options = null
+    }
+    exec(transferCallback(options, success), error, 'SambaPlugin', 'syncFolder', [ localPath, smbPath, transferOptions(options) ])
+  },
+
+  enqueueTransfer(task, success, error) {
+    exec(success, error, 'SambaPlugin', 'enqueueTransfer', [ task ])
+  },
+
+  pauseTransfer(id, success, error) {
+    exec(success, error, 'SambaPlugin', 'pauseTransfer', [ id ])
+  },
+
+  resumeTransfer(id, success, error) {
+    exec(success, error, 'SambaPlugin', 'resumeTransfer', [ id ])
+  },
+
+  cancelTransfer(id, success, error) {
+    exec(success, error, 'SambaPlugin', 'cancelTransfer', [ id ])
+  },
+
+  listTransfers(success, error) {
+    exec(success, error, 'SambaPlugin', 'listTransfers', null)
   },
 
-  download(smbPath, success, error) {
-    exec(success, error, 'SambaPlugin', 'download', [ smbPath ])
+  clearTransfers(success, error) {
+    exec(success, error, 'SambaPlugin', 'clearTransfers', null)
+  },
+
+  configureTransfers(options, success, error) {
+    exec(success, error, 'SambaPlugin', 'configureTransfers', [ options ])
+  },
+
+  onTransferEvent(listener, error) {
+    exec(listener, error, 'SambaPlugin', 'transferEvents', null)
   },
 
   createFile(path, success, error) {
@@ -55,6 +302,26 @@ module.exports = {
 
   wakeOnLan(mac, port, success, error) {
     exec(success, error, 'SambaPlugin', 'wakeOnLan', [ mac, port ])
+  },
+
+  cacheStats(success, error) {
+    exec(success, error, 'SambaPlugin', 'cacheStats', null)
+  },
+
+  listingStats(success, error) {
+    exec(success, error, 'SambaPlugin', 'listingStats', null)
+  },
+
+  registerGroup(group, extensions, success, error) {
+    exec(success, error, 'SambaPlugin', 'registerGroup', [ group, extensions ])
+  },
+
+  listGroups(success, error) {
+    exec(success, error, 'SambaPlugin', 'listGroups', null)
+  },
+
+  classify(path, success, error) {
+    exec(success, error, 'SambaPlugin', 'classify', [ path ])
   }
 
 }